@@ -5,11 +5,17 @@ package de.toshsoft.tsvnc;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.widget.ImageView;
 
+import com.antlersoft.android.drawing.RectList;
+import com.antlersoft.util.ObjectPool;
+
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Abstract interface between the VncCanvas and the bitmap and pixel data buffers that actually contain
@@ -19,6 +25,11 @@ import java.io.IOException;
  *
  */
 abstract class AbstractBitmapData {
+	/**
+	 * Most rectangles kept in a damage list; beyond that they are merged into their bounds
+	 */
+	static final int MAX_DAMAGE_RECTS = 32;
+
 	int framebufferwidth;
 	int framebufferheight;
 	int bitmapwidth;
@@ -31,6 +42,32 @@ abstract class AbstractBitmapData {
 	VncCanvas vncCanvas;
 	private AbstractBitmapDrawable drawable;
 
+	/**
+	 * Pool for the damage list; only used with the list locked
+	 */
+	private ObjectPool<Rect> damagePool = new ObjectPool<Rect>() {
+
+		/* (non-Javadoc)
+		 * @see com.antlersoft.util.ObjectPool#itemForPool()
+		 */
+		@Override
+		protected Rect itemForPool() {
+			return new Rect();
+		}
+	};
+	/**
+	 * Regions in full-frame coordinates changed since the view was last invalidated.
+	 * Synchronize on the list to use it.
+	 */
+	private final RectList damage = new RectList(damagePool);
+	private Rect damageRect = new Rect();
+	// Only used in the UI thread
+	private RectF screenRect = new RectF();
+	private Rect invalidRect = new Rect();
+	// Only used in the render thread of a SurfaceRenderer
+	private RectF renderRect = new RectF();
+	private Rect renderDirty = new Rect();
+
 	AbstractBitmapData( RfbProto p, VncCanvas c)
 	{
 		rfb=p;
@@ -48,10 +85,122 @@ abstract class AbstractBitmapData {
 	{
 		if (vncCanvas.settings.getUseLocalCursor())
 		{
-			if (drawable==null)
-				drawable = createDrawable();
+			SurfaceRenderer renderer = vncCanvas.surfaceRenderer;
+			if (renderer != null)
+			{
+				// The render thread uses the drawable
+				addCursorDamage();
+				renderer.redraw();
+				return;
+			}
+			AbstractBitmapDrawable drawable = getDrawable();
 			drawable.setCursorRect(vncCanvas.mouseX,vncCanvas.mouseY);
-			vncCanvas.invalidate(drawable.cursorRect);
+			invalidateScaled(vncCanvas, vncCanvas.getImageMatrix(), drawable.cursorRect);
+		}
+	}
+
+	/**
+	 * @return The drawable for this data, created on first use
+	 */
+	synchronized AbstractBitmapDrawable getDrawable()
+	{
+		if (drawable==null)
+			drawable = createDrawable();
+		return drawable;
+	}
+
+	/**
+	 * Add the area of the local cursor to the damage; call before and after the protocol
+	 * thread moves the cursor or changes its shape
+	 */
+	final void addCursorDamage()
+	{
+		if (vncCanvas.settings.getUseLocalCursor())
+		{
+			synchronized (damage)
+			{
+				AbstractBitmapDrawable.getCursorRect(vncCanvas.remoteCursor, vncCanvas.mouseX, vncCanvas.mouseY, damageRect);
+				addToRegion(damage, damageRect);
+			}
+		}
+	}
+
+	/**
+	 * Add a region the view has to redraw, in full-frame coordinates.  Implementations call
+	 * this from updateBitmap and copyRect.
+	 * @param x Top left x
+	 * @param y Top left y
+	 * @param w width (pixels)
+	 * @param h height (pixels)
+	 */
+	final void addDamage(int x, int y, int w, int h)
+	{
+		synchronized (damage)
+		{
+			damageRect.set(x, y, x + w, y + h);
+			addToRegion(damage, damageRect);
+		}
+	}
+
+	/**
+	 * Add a rectangle to a damage list, keeping it at MAX_DAMAGE_RECTS at most
+	 * @param r Added; changed to the bounds if the list is merged
+	 */
+	static void addToRegion(RectList list, Rect r)
+	{
+		list.add(r);
+		int size = list.getSize();
+		if (size > MAX_DAMAGE_RECTS)
+		{
+			// Many small updates; one larger rect is cheaper than keeping them apart
+			for (int i = 0; i < size; i++)
+				r.union(list.get(i));
+			list.clear();
+			list.add(r);
+		}
+	}
+
+	/**
+	 * Invalidate the part of the view that shows a rectangle in full-frame coordinates
+	 * @param matrix Image matrix of the view
+	 */
+	private void invalidateScaled(ImageView v, Matrix matrix, Rect r)
+	{
+		mapScaled(matrix, r, screenRect, invalidRect);
+		invalidRect.offset(v.getPaddingLeft(), v.getPaddingTop());
+		v.invalidate(invalidRect);
+	}
+
+	private static void mapScaled(Matrix matrix, Rect r, RectF mapped, Rect result)
+	{
+		mapped.set(r);
+		matrix.mapRect(mapped);
+		mapped.roundOut(result);
+		// When scaled, filtering reaches one pixel further
+		result.inset(-1, -1);
+	}
+
+	/**
+	 * Take the damage for drawing it on a surface; call in the render thread
+	 * @param matrix Maps full-frame coordinates to the surface
+	 * @param dirty Set to the bounds of the damage on the surface
+	 * @return False if there is no damage
+	 */
+	boolean takeDamage(Matrix matrix, Rect dirty)
+	{
+		synchronized (damage)
+		{
+			int size = damage.getSize();
+			if (size == 0)
+				return false;
+			dirty.setEmpty();
+			for (int i = 0; i < size; i++)
+			{
+				mapScaled(matrix, damage.get(i), renderRect, renderDirty);
+				dirty.union(renderDirty);
+			}
+			damage.clear();
+			return true;
 		}
 	}
 	
@@ -78,6 +227,15 @@ abstract class AbstractBitmapData {
 	 * @param incremental True if we want incremental update; false for full update
 	 */
 	abstract void writeFullUpdateRequest( boolean incremental) throws IOException;
+
+	/**
+	 * Ask the server to stream updates for the currently held bitmap without waiting for
+	 * further update requests
+	 */
+	void writeEnableContinuousUpdates() throws IOException
+	{
+		rfb.writeEnableContinuousUpdates(true, 0, 0, framebufferwidth, framebufferheight);
+	}
 	
 	/**
 	 * Determine if a rectangle in full-frame coordinates can be drawn in the existing buffer
@@ -96,10 +254,19 @@ abstract class AbstractBitmapData {
 	 * @return Offset in bitmapPixels array of color data for that point
 	 */
 	abstract int offset( int x, int y);
+
+	/**
+	 * @return True if bitmapPixels holds the whole framebuffer with a stride of
+	 * framebufferwidth, so rects can be decoded into it from other threads
+	 */
+	boolean pixelsCoverFramebuffer()
+	{
+		return true;
+	}
 	
 	/**
 	 * Update pixels in the bitmap with data from the bitmapPixels array, positioned
-	 * in full-frame coordinates
+	 * in full-frame coordinates, and add them to the damage
 	 * @param x Top left x
 	 * @param y Top left y
 	 * @param w width (pixels)
@@ -114,19 +281,43 @@ abstract class AbstractBitmapData {
 	abstract AbstractBitmapDrawable createDrawable();
 	
 	/**
-	 * Call in UI thread; tell ImageView we've changed
+	 * Call in UI thread; tell ImageView we've changed.  Only the damaged parts of the view
+	 * are invalidated once the drawable is set.  When a SurfaceRenderer shows the data, the
+	 * view only gets the drawable, for its layout and scaling.
 	 * @param v ImageView displaying bitmap data
 	 */
 	void updateView(ImageView v)
 	{
-		if (drawable==null)
-			drawable = createDrawable();
-		v.setImageDrawable(drawable);
-		v.invalidate();
+		AbstractBitmapDrawable drawable = getDrawable();
+		if (vncCanvas.surfaceRenderer != null)
+		{
+			if (v.getDrawable() != drawable)
+				v.setImageDrawable(drawable);
+			return;
+		}
+		if (v.getDrawable() != drawable)
+		{
+			v.setImageDrawable(drawable);
+			synchronized (damage)
+			{
+				damage.clear();
+			}
+			v.invalidate();
+			return;
+		}
+		Matrix matrix = v.getImageMatrix();
+		synchronized (damage)
+		{
+			int size = damage.getSize();
+			for (int i = 0; i < size; i++)
+				invalidateScaled(v, matrix, damage.get(i));
+			damage.clear();
+		}
 	}
 	
 	/**
-	 * Copy a rectangle from one part of the bitmap to another
+	 * Copy a rectangle from one part of the bitmap to another, adding the destination
+	 * to the damage
 	 * @param src Rectangle in full-frame coordinates to be copied
 	 * @param dest Destination rectangle in full-frame coordinates
 	 * @param paint Paint specifier
@@ -134,15 +325,45 @@ abstract class AbstractBitmapData {
 	abstract void copyRect( Rect src, Rect dest, Paint paint);
 	
 	/**
-	 * Draw a rectangle in the bitmap with coordinates given in full frame
+	 * Fill a rectangle of the bitmapPixels array with coordinates given in full frame.
+	 * Call updateBitmap for the area afterwards, once per tile or rect rather than per fill;
+	 * that also adds it to the damage.
 	 * @param x Top left x
 	 * @param y Top left y
 	 * @param w width (pixels)
 	 * @param h height (pixels)
-	 * @param paint How to draw
+	 * @param color ARGB color
 	 */
-	abstract void drawRect( int x, int y, int w, int h, Paint paint);
+	void fillRect( int x, int y, int w, int h, int color)
+	{
+		int offset = offset(x, y);
+		if (w > 10)
+		{
+			for (int j = 0; j < h; j++, offset += bitmapwidth)
+			{
+				Arrays.fill(bitmapPixels, offset, offset + w, color);
+			}
+		}
+		else
+		{
+			for (int j = 0; j < h; j++, offset += bitmapwidth - w)
+			{
+				for (int k = 0; k < w; k++, offset++)
+				{
+					bitmapPixels[offset] = color;
+				}
+			}
+		}
+	}
 	
+	/**
+	 * Call in the protocol thread when a FramebufferUpdate has been decoded, to make it
+	 * visible as a whole if the implementation buffers it
+	 */
+	void publish()
+	{
+	}
+
 	/**
 	 * Scroll position has changed.
 	 * <p>
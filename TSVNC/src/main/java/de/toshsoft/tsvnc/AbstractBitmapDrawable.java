@@ -8,6 +8,7 @@ import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.DrawableContainer;
+import android.widget.ImageView;
 
 /**
  * @author Michael A. MacDonald
@@ -52,18 +53,56 @@ public class AbstractBitmapDrawable extends DrawableContainer {
 		}
 	}
 	
+	/**
+	 * Draw outside the UI thread, with the state of the VncCanvas passed in instead of
+	 * read from the view
+	 * @param scaleType Scale type of the VncCanvas
+	 * @param visibleWidth Visible width of the VncCanvas, in framebuffer pixels
+	 * @param visibleHeight Visible height of the VncCanvas, in framebuffer pixels
+	 */
+	void draw(Canvas canvas, ImageView.ScaleType scaleType, int visibleWidth, int visibleHeight)
+	{
+		draw(canvas);
+	}
+	
 	void drawCursor(Canvas canvas)
 	{
+		RemoteCursor cursor = data.vncCanvas.remoteCursor;
+		if (cursor != null)
+		{
+			// Shape from the server; empty if the server hides the cursor
+			if (cursor.bitmap != null)
+				canvas.drawBitmap(cursor.bitmap, cursorRect.left, cursorRect.top, _defaultPaint);
+			return;
+		}
 		canvas.drawRect(cursorRect,_whitePaint);
 		canvas.drawRect((float)cursorRect.left + 1, (float)cursorRect.top + 1, (float)cursorRect.right - 1, (float)cursorRect.bottom - 1, _blackPaint);
 	}
 	
 	void setCursorRect(int mouseX, int mouseY)
 	{
-		cursorRect.left = mouseX - 2;
-		cursorRect.right = cursorRect.left + 4;
-		cursorRect.top = mouseY - 2;
-		cursorRect.bottom = cursorRect.top + 4;			
+		getCursorRect(data.vncCanvas.remoteCursor, mouseX, mouseY, cursorRect);
+	}
+
+	/**
+	 * Get the area the local cursor covers in full-frame coordinates
+	 * @param cursor Shape from the server, or null for the default
+	 * @param r Set to the area
+	 */
+	static void getCursorRect(RemoteCursor cursor, int mouseX, int mouseY, Rect r)
+	{
+		if (cursor != null)
+		{
+			r.left = mouseX - cursor.hotX;
+			r.right = r.left + cursor.width;
+			r.top = mouseY - cursor.hotY;
+			r.bottom = r.top + cursor.height;
+			return;
+		}
+		r.left = mouseX - 2;
+		r.right = r.left + 4;
+		r.top = mouseY - 2;
+		r.bottom = r.top + 4;			
 	}
 
 	/* (non-Javadoc)
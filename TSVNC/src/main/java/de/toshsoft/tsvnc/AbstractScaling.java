@@ -92,6 +92,15 @@ abstract class AbstractScaling {
 		activity.updateInputMenu();
 	}
 	
+	/**
+	 * The remote framebuffer changed size; called in the UI thread
+	 * @param canvas Canvas showing the framebuffer
+	 */
+	void framebufferSizeChanged(VncCanvas canvas)
+	{
+		
+	}
+	
 	abstract int getDefaultHandlerId();
 	
 	/**
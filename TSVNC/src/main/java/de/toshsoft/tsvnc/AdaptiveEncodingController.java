@@ -0,0 +1,193 @@
+package de.toshsoft.tsvnc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Chooses the preferred encoding, compression level and JPEG quality from the measured
+ * network throughput and from what each encoding costs this device to decode.
+ * <p>
+ * VncCanvas reports every decoded rect with {@link #recordDecode}; after each update
+ * it calls {@link #update}, and sends new encodings to the server if that returns true.
+ */
+class AdaptiveEncodingController {
+	private final static String TAG = "AdaptiveEncoding";
+
+	/**
+	 * Below this many kbit/s the link is treated as slow, like a cellular connection
+	 */
+	static final int SLOW_KBITS = 1000;
+
+	/**
+	 * Above this many kbit/s there is bandwidth to trade for less compression
+	 */
+	static final int MEDIUM_KBITS = 5000;
+
+	/**
+	 * If decoding takes more than this share of the time spent on updates, the
+	 * client and not the network is the bottleneck
+	 */
+	static final double CPU_BOUND_SHARE = 0.6;
+
+	/**
+	 * Minimum time between decisions, so a single slow update does not cause flip-flopping
+	 */
+	static final long DECISION_INTERVAL_MS = 3000;
+
+	/**
+	 * Weight of a new sample in the per-encoding decode cost averages
+	 */
+	static final double COST_WEIGHT = 0.1;
+
+	// Encodings whose decode cost is tracked, with the cost in ns per pixel assumed
+	// until it has been measured.  Only the relative order of the defaults matters.
+	private static final int[] encodings = {
+		RfbProto.EncodingHextile, RfbProto.EncodingZlib, RfbProto.EncodingTight,
+		RfbProto.EncodingUltra, RfbProto.EncodingTRLE, RfbProto.EncodingZRLE
+	};
+	private static final double[] defaultCost = { 15, 20, 25, 10, 12, 30 };
+
+	// Encodings cheap enough to decode for fast links
+	private static final int[] cheapEncodings = {
+		RfbProto.EncodingTRLE, RfbProto.EncodingUltra, RfbProto.EncodingHextile, RfbProto.EncodingZRLE
+	};
+
+	private final RfbProto rfb;
+	private final int fastKbits;
+	private final boolean allowLossy;
+	private final double[] cost = new double[encodings.length];
+	private final boolean[] measured = new boolean[encodings.length];
+
+	private long windowStart;
+	private long windowDecodeNanos;
+	private long windowWaitNanos;
+
+	int preferredEncoding = RfbProto.EncodingTight;
+	int compressLevel = -1;
+	int jpegQuality = -1;
+
+	/**
+	 * @param rfb Protocol, for the throughput estimate and the server type
+	 * @param fastKbits Throughput above which the cheapest encoding to decode is preferred
+	 * @param allowLossy True if JPEG quality levels may be asked for; otherwise jpegQuality stays -1
+	 */
+	AdaptiveEncodingController(RfbProto rfb, int fastKbits, boolean allowLossy)
+	{
+		this.rfb = rfb;
+		this.fastKbits = fastKbits;
+		this.allowLossy = allowLossy;
+		System.arraycopy(defaultCost, 0, cost, 0, cost.length);
+		windowStart = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Record a decoded rect
+	 * @param encoding Encoding of the rect
+	 * @param pixels Number of pixels in the rect; 0 to count the time without learning its cost
+	 * @param decodeNanos Time spent decoding, not counting network waits
+	 * @param waitNanos Time spent waiting for the network while reading the rect
+	 */
+	void recordDecode(int encoding, int pixels, long decodeNanos, long waitNanos)
+	{
+		windowDecodeNanos += decodeNanos;
+		windowWaitNanos += waitNanos;
+		int i = indexOf(encoding);
+		if (i < 0 || pixels <= 0)
+			return;
+		double sample = (double)decodeNanos / pixels;
+		if (measured[i])
+			cost[i] += (sample - cost[i]) * COST_WEIGHT;
+		else
+		{
+			cost[i] = sample;
+			measured[i] = true;
+		}
+	}
+
+	/**
+	 * Decide on the encoding parameters for current conditions
+	 * @return True if preferredEncoding, compressLevel or jpegQuality changed
+	 */
+	boolean update()
+	{
+		long now = SystemClock.uptimeMillis();
+		if (now - windowStart < DECISION_INTERVAL_MS || windowDecodeNanos + windowWaitNanos == 0)
+			return false;
+
+		long kbits = rfb.kbitsPerSecond();
+		double decodeShare = (double)windowDecodeNanos / (windowDecodeNanos + windowWaitNanos);
+		boolean cpuBound = decodeShare > CPU_BOUND_SHARE;
+		windowStart = now;
+		windowDecodeNanos = windowWaitNanos = 0;
+
+		int encoding;
+		int level;
+		int quality;
+		if (kbits >= fastKbits || (cpuBound && kbits >= MEDIUM_KBITS))
+		{
+			// Plenty of bandwidth: least work for the client
+			encoding = cheapestEncoding();
+			level = 1;
+			// Lossless, also when Tight is the fallback for servers without TRLE
+			quality = -1;
+		}
+		else if (kbits >= MEDIUM_KBITS)
+		{
+			encoding = RfbProto.EncodingTight;
+			level = cpuBound ? 1 : 3;
+			quality = 8;
+		}
+		else if (kbits >= SLOW_KBITS)
+		{
+			encoding = RfbProto.EncodingTight;
+			level = cpuBound ? 3 : 6;
+			quality = 6;
+		}
+		else
+		{
+			// Slow link: every byte counts more than decode time
+			encoding = RfbProto.EncodingTight;
+			level = 9;
+			quality = 4;
+		}
+		if (! allowLossy)
+			quality = -1;
+
+		if (encoding == preferredEncoding && level == compressLevel && quality == jpegQuality)
+			return false;
+
+		Log.i(TAG, "Throughput " + kbits + " kbit/s, decoding " + (int)(decodeShare * 100) + "% of update time"
+				+ (cpuBound ? " (client bound)" : "") + ": encoding " + encoding + ", compress level " + level
+				+ ", quality " + quality);
+		preferredEncoding = encoding;
+		compressLevel = level;
+		jpegQuality = quality;
+		return true;
+	}
+
+	private int cheapestEncoding()
+	{
+		int best = RfbProto.EncodingTRLE;
+		double bestCost = Double.MAX_VALUE;
+		for (int encoding : cheapEncodings)
+		{
+			if (encoding == RfbProto.EncodingUltra && ! rfb.ultraVncServer)
+				continue;
+			double c = cost[indexOf(encoding)];
+			if (c < bestCost)
+			{
+				bestCost = c;
+				best = encoding;
+			}
+		}
+		return best;
+	}
+
+	private static int indexOf(int encoding)
+	{
+		for (int i = 0; i < encodings.length; i++)
+			if (encodings[i] == encoding)
+				return i;
+		return -1;
+	}
+}
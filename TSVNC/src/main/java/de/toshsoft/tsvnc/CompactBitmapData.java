@@ -8,6 +8,8 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 
+import com.antlersoft.android.drawing.OverlappingCopy;
+
 import java.io.IOException;
 
 /**
@@ -70,6 +72,7 @@ class CompactBitmapData extends AbstractBitmapData {
 	@Override
 	void updateBitmap(int x, int y, int w, int h) {
 		mbitmap.setPixels(bitmapPixels, offset(x,y), bitmapwidth, x, y, w, h);
+		addDamage(x, y, w, h);
 	}
 
 	/* (non-Javadoc)
@@ -77,15 +80,8 @@ class CompactBitmapData extends AbstractBitmapData {
 	 */
 	@Override
 	void copyRect(Rect src, Rect dest, Paint paint) {
-		memGraphics.drawBitmap(mbitmap, src, dest, paint);
-	}
-
-	/* (non-Javadoc)
-	 * @see android.androidVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
-	 */
-	@Override
-	void drawRect(int x, int y, int w, int h, Paint paint) {
-		memGraphics.drawRect(x, y, x + w, y + h, paint);
+		OverlappingCopy.Copy(mbitmap, memGraphics, paint, src, dest.left, dest.top);
+		addDamage(dest.left, dest.top, dest.width(), dest.height());
 	}
 
 	/* (non-Javadoc)
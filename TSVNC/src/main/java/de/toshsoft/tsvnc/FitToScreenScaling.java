@@ -66,6 +66,15 @@ class FitToScreenScaling extends AbstractScaling {
 		screenHeight = activity.vncCanvas.displayHeight;
 	}
 
+	/* (non-Javadoc)
+	 * @see android.androidVNC.AbstractScaling#framebufferSizeChanged(android.androidVNC.VncCanvas)
+	 */
+	@Override
+	void framebufferSizeChanged(VncCanvas canvas) {
+		framebufferWidth = canvas.rfb.framebufferWidth;
+		framebufferHeight = canvas.rfb.framebufferHeight;
+	}
+
 	@Override
 	float getScale() {
 		float scalingX = 1.0f;
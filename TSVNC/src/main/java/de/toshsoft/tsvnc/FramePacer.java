@@ -0,0 +1,133 @@
+package de.toshsoft.tsvnc;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * Presents decoded frames at most once per display vsync.
+ * <p>
+ * The protocol thread only marks the frame dirty, however many rects or rows of tiles it
+ * decodes; the first mark schedules a Choreographer callback, which runs the present
+ * Runnable on the UI thread at the next vsync.  Optionally frames are only presented once
+ * a whole FramebufferUpdate has been decoded.  That only keeps half-applied updates off
+ * the screen with double-buffered bitmap data; otherwise the view may still be redrawn,
+ * like when it is panned, from pixels the next update is being decoded into.
+ * <p>
+ * A FramebufferUpdate that completes while the one before it is still waiting to be
+ * presented is counted as dropped: it is shown together with the next one, not on its own.
+ */
+class FramePacer implements Choreographer.FrameCallback
+{
+	final Handler handler;
+	final Runnable present;
+	private final boolean atUpdateBoundaries;
+	// Only used in the UI thread
+	private final Choreographer choreographer;
+
+	private boolean dirty;
+	private boolean scheduled;
+	// A FramebufferUpdate completed since the last present
+	private boolean updatePending;
+	private long presentedFrames;
+	private long droppedFrames;
+
+	private final Runnable schedule = new Runnable() {
+		public void run() {
+			choreographer.postFrameCallback(FramePacer.this);
+		}
+	};
+
+	/**
+	 * Create in the UI thread
+	 * @param handler Handler of the UI thread
+	 * @param present Run in the UI thread to show what was decoded
+	 * @param atUpdateBoundaries True to present only completed FramebufferUpdates
+	 */
+	FramePacer(Handler handler, Runnable present, boolean atUpdateBoundaries)
+	{
+		this.handler = handler;
+		this.present = present;
+		this.atUpdateBoundaries = atUpdateBoundaries;
+		choreographer = Choreographer.getInstance();
+	}
+
+	/**
+	 * Call when pixels have changed; presents them with the next vsync, unless only
+	 * completed updates are presented
+	 */
+	void markDirty()
+	{
+		if (! atUpdateBoundaries)
+			schedule();
+	}
+
+	/**
+	 * Call when a FramebufferUpdate has been decoded
+	 */
+	void updateComplete()
+	{
+		synchronized (this)
+		{
+			if (updatePending)
+				droppedFrames++;
+			updatePending = true;
+		}
+		schedule();
+	}
+
+	synchronized long getPresentedFrames()
+	{
+		return presentedFrames;
+	}
+
+	synchronized long getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+
+	private void schedule()
+	{
+		synchronized (this)
+		{
+			dirty = true;
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		requestFrame();
+	}
+
+	/**
+	 * Arrange for a frame to be presented; by default with the next vsync, in the UI thread
+	 */
+	void requestFrame()
+	{
+		// Choreographer callbacks are posted from the thread they run on
+		handler.post(schedule);
+	}
+
+	/**
+	 * Call when presenting a frame requested with requestFrame()
+	 * @return False if nothing was decoded since the last frame
+	 */
+	synchronized boolean beginFrame()
+	{
+		scheduled = false;
+		if (! dirty)
+			return false;
+		dirty = false;
+		updatePending = false;
+		presentedFrames++;
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see android.view.Choreographer.FrameCallback#doFrame(long)
+	 */
+	@Override
+	public void doFrame(long frameTimeNanos)
+	{
+		if (beginFrame())
+			present.run();
+	}
+}
@@ -8,8 +8,10 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.widget.ImageView;
 
+import com.antlersoft.android.drawing.RectList;
+import com.antlersoft.util.ObjectPool;
+
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * @author Michael A. MacDonald
@@ -19,6 +21,15 @@ class FullBufferBitmapData extends AbstractBitmapData {
 
 	int xoffset;
 	int yoffset;
+
+	/**
+	 * What the drawable shows when double-buffered, or null.  Decoding goes into
+	 * bitmapPixels, and publish() copies the changed parts here with the array locked.
+	 */
+	private int[] frontPixels;
+	// Changed in bitmapPixels since the last publish(); only used in the protocol thread
+	private RectList unpublished;
+	private Rect publishRect;
 	
 	/**
 	 * @author Michael A. MacDonald
@@ -26,6 +37,10 @@ class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	class Drawable extends AbstractBitmapDrawable {
 
+		// Part of the framebuffer to draw, and the canvas clip
+		private Rect drawRect = new Rect();
+		private Rect clipBounds = new Rect();
+
 		/**
 		 * @param data
 		 */
@@ -34,31 +49,72 @@ class FullBufferBitmapData extends AbstractBitmapData {
 			// TODO Auto-generated constructor stub
 		}
 
+		/**
+		 * Limit drawRect to what the canvas would not clip away; when only damaged parts of
+		 * the view are invalidated, that is all that has to be copied from bitmapPixels
+		 * @return False if nothing is left to draw
+		 */
+		private boolean clip(Canvas canvas)
+		{
+			if (! canvas.getClipBounds(clipBounds))
+				return false;
+			return drawRect.intersect(clipBounds);
+		}
+
 		/* (non-Javadoc)
 		 * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
 		 */
 		@Override
 		public void draw(Canvas canvas) {
-			if (vncCanvas.getScaleType() == ImageView.ScaleType.FIT_CENTER)
+			draw(canvas, vncCanvas.getScaleType(), vncCanvas.getVisibleWidth(), vncCanvas.getVisibleHeight());
+		}
+
+		/* (non-Javadoc)
+		 * @see de.toshsoft.tsvnc.AbstractBitmapDrawable#draw(android.graphics.Canvas, android.widget.ImageView.ScaleType, int, int)
+		 */
+		@Override
+		void draw(Canvas canvas, ImageView.ScaleType scaleType, int visibleWidth, int visibleHeight) {
+			int[] pixels = frontPixels != null ? frontPixels : data.bitmapPixels;
+			// Keeps publish() from changing the front buffer while it is drawn
+			synchronized (pixels)
+			{
+				drawPixels(canvas, pixels, scaleType, visibleWidth, visibleHeight);
+			}
+			if(data.vncCanvas.settings.getUseLocalCursor())
+			{
+				setCursorRect(data.vncCanvas.mouseX, data.vncCanvas.mouseY);
+				clipRect.set(cursorRect);
+				if (canvas.clipRect(cursorRect))
+				{
+					drawCursor(canvas);
+				}
+			}
+		}
+
+		private void drawPixels(Canvas canvas, int[] pixels, ImageView.ScaleType scaleType, int visibleWidth, int visibleHeight) {
+			if (scaleType == ImageView.ScaleType.FIT_CENTER)
 			{
-				canvas.drawBitmap(data.bitmapPixels, 0, data.framebufferwidth, xoffset, yoffset, framebufferwidth, framebufferheight, false, null);				
+				drawRect.set(xoffset, yoffset, xoffset + framebufferwidth, yoffset + framebufferheight);
+				if (clip(canvas))
+					canvas.drawBitmap(pixels, drawRect.left - xoffset + (drawRect.top - yoffset) * data.framebufferwidth, data.framebufferwidth, drawRect.left, drawRect.top, drawRect.width(), drawRect.height(), false, null);
 			}
 			else
 			{
-				float scale = vncCanvas.getScale();
 				int xo = xoffset < 0 ? 0 : xoffset;
 				int yo = yoffset < 0 ? 0 : yoffset;
 				/*
 				if (scale == 1 || scale <= 0)
 				{
 				*/
-					int drawWidth = vncCanvas.getVisibleWidth();
+					int drawWidth = visibleWidth;
 					if (drawWidth + xo > data.framebufferwidth)
 						drawWidth = data.framebufferwidth - xo;
-					int drawHeight = vncCanvas.getVisibleHeight();
+					int drawHeight = visibleHeight;
 					if (drawHeight + yo > data.framebufferheight)
 						drawHeight = data.framebufferheight - yo;
-					canvas.drawBitmap(data.bitmapPixels, offset(xo, yo), data.framebufferwidth, xo, yo, drawWidth, drawHeight, false, null);
+					drawRect.set(xo, yo, xo + drawWidth, yo + drawHeight);
+					if (clip(canvas))
+						canvas.drawBitmap(pixels, offset(drawRect.left, drawRect.top), data.framebufferwidth, drawRect.left, drawRect.top, drawRect.width(), drawRect.height(), false, null);
 				/*
 				}
 				else
@@ -69,19 +125,10 @@ class FullBufferBitmapData extends AbstractBitmapData {
 					int scaleheight = (int)(vncCanvas.getVisibleHeight() / scale + 1);
 					if (scaleheight + yo > data.framebufferheight)
 						scaleheight = data.framebufferheight - yo;
-					canvas.drawBitmap(data.bitmapPixels, offset(xo, yo), data.framebufferwidth, xo, yo, scalewidth, scaleheight, false, null);				
+					canvas.drawBitmap(pixels, offset(xo, yo), data.framebufferwidth, xo, yo, scalewidth, scaleheight, false, null);				
 				}
 				*/
 			}
-			if(data.vncCanvas.settings.getUseLocalCursor())
-			{
-				setCursorRect(data.vncCanvas.mouseX, data.vncCanvas.mouseY);
-				clipRect.set(cursorRect);
-				if (canvas.clipRect(cursorRect))
-				{
-					drawCursor(canvas);
-				}
-			}
 		}
 	}
 
@@ -90,19 +137,49 @@ class FullBufferBitmapData extends AbstractBitmapData {
 	 * safety factor
 	 */
 	static final int CAPACITY_MULTIPLIER = 7;
+
+	/**
+	 * Same as CAPACITY_MULTIPLIER, with the front buffer of double-buffered mode
+	 */
+	static final int DOUBLE_BUFFER_CAPACITY_MULTIPLIER = CAPACITY_MULTIPLIER + 4;
 	
 	/**
 	 * @param p
 	 * @param c
 	 */
 	public FullBufferBitmapData(RfbProto p, VncCanvas c, int capacity) {
+		this(p, c, capacity, null, false);
+	}
+
+	/**
+	 * @param p
+	 * @param c
+	 * @param capacity
+	 * @param reuse Pixel array of replaced bitmap data, used if it is large enough; or null
+	 * @param doubleBuffered True to show only published updates, from a second pixel array
+	 */
+	FullBufferBitmapData(RfbProto p, VncCanvas c, int capacity, int[] reuse, boolean doubleBuffered) {
 		super(p, c);
 		framebufferwidth=rfb.framebufferWidth;
 		framebufferheight=rfb.framebufferHeight;
 		bitmapwidth=framebufferwidth;
 		bitmapheight=framebufferheight;
 		android.util.Log.i("FBBM", "bitmapsize = ("+bitmapwidth+","+bitmapheight+")");
-		bitmapPixels = new int[framebufferwidth * framebufferheight];
+		if (reuse != null && reuse.length >= framebufferwidth * framebufferheight)
+			bitmapPixels = reuse;
+		else
+			bitmapPixels = new int[framebufferwidth * framebufferheight];
+		if (doubleBuffered)
+		{
+			frontPixels = new int[framebufferwidth * framebufferheight];
+			unpublished = new RectList(new ObjectPool<Rect>() {
+				@Override
+				protected Rect itemForPool() {
+					return new Rect();
+				}
+			});
+			publishRect = new Rect();
+		}
 	}
 
 	/* (non-Javadoc)
@@ -110,8 +187,21 @@ class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	@Override
 	void copyRect(Rect src, Rect dest, Paint paint) {
-		// TODO copy rect working?
-		throw new RuntimeException( "copyrect Not implemented");
+		int w = src.right - src.left;
+		int h = src.bottom - src.top;
+		if (dest.top > src.top)
+		{
+			// Moving down: copy rows bottom-up so overlapping source rows are read before they are overwritten
+			for (int j = h - 1; j >= 0; j--)
+				System.arraycopy(bitmapPixels, offset(src.left, src.top + j), bitmapPixels, offset(dest.left, dest.top + j), w);
+		}
+		else
+		{
+			// System.arraycopy handles overlap within a row
+			for (int j = 0; j < h; j++)
+				System.arraycopy(bitmapPixels, offset(src.left, src.top + j), bitmapPixels, offset(dest.left, dest.top + j), w);
+		}
+		changed(dest.left, dest.top, w, h);
 	}
 
 	/* (non-Javadoc)
@@ -122,32 +212,6 @@ class FullBufferBitmapData extends AbstractBitmapData {
 		return new Drawable(this);
 	}
 
-	/* (non-Javadoc)
-	 * @see android.androidVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
-	 */
-	@Override
-	void drawRect(int x, int y, int w, int h, Paint paint) {
-		int color = paint.getColor();
-		int offset = offset(x,y);
-		if (w > 10)
-		{
-			for (int j = 0; j < h; j++, offset += framebufferwidth)
-			{
-				Arrays.fill(bitmapPixels, offset, offset + w, color);
-			}
-		}
-		else
-		{
-			for (int j = 0; j < h; j++, offset += framebufferwidth - w)
-			{
-				for (int k = 0; k < w; k++, offset++)
-				{
-					bitmapPixels[offset] = color;
-				}
-			}
-		}
-	}
-
 	/* (non-Javadoc)
 	 * @see android.androidVNC.AbstractBitmapData#offset(int, int)
 	 */
@@ -179,8 +243,55 @@ class FullBufferBitmapData extends AbstractBitmapData {
 	 */
 	@Override
 	void updateBitmap(int x, int y, int w, int h) {
-		// Don't need to do anything here
+		// The drawable draws from bitmapPixels or the front buffer; nothing to upload
+		changed(x, y, w, h);
+	}
+
+	private void changed(int x, int y, int w, int h) {
+		if (frontPixels == null)
+		{
+			addDamage(x, y, w, h);
+			return;
+		}
+		publishRect.set(x, y, x + w, y + h);
+		addToRegion(unpublished, publishRect);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.toshsoft.tsvnc.AbstractBitmapData#publish()
+	 */
+	@Override
+	void publish() {
+		if (frontPixels == null)
+			return;
+		int size = unpublished.getSize();
+		synchronized (frontPixels)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				Rect r = unpublished.get(i);
+				if (! r.intersect(0, 0, framebufferwidth, framebufferheight))
+					continue;
+				int w = r.width();
+				for (int y = r.top; y < r.bottom; y++)
+					System.arraycopy(bitmapPixels, offset(r.left, y), frontPixels, offset(r.left, y), w);
+			}
+		}
+		for (int i = 0; i < size; i++)
+		{
+			Rect r = unpublished.get(i);
+			addDamage(r.left, r.top, r.width(), r.height());
+		}
+		unpublished.clear();
+	}
 
+	/* (non-Javadoc)
+	 * @see de.toshsoft.tsvnc.AbstractBitmapData#dispose()
+	 */
+	@Override
+	void dispose() {
+		super.dispose();
+		frontPixels = null;
 	}
 
 	/* (non-Javadoc)
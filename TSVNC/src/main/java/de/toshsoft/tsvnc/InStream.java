@@ -95,6 +95,74 @@ abstract public class InStream {
     }
   }
 
+  // Bulk reads for the ZRLE family of decoders.  Each checks the buffer once
+  // for as many items as it holds, instead of once per byte.
+
+  // readCPixel() reads a 3 byte compressed pixel: blue, green, red.
+
+  public final int readCPixel() throws Exception {
+    check(3);
+    byte[] buf = b;
+    int p = ptr;
+    ptr = p + 3;
+    return (buf[p + 2] & 0xff) << 16 | (buf[p + 1] & 0xff) << 8 | (buf[p] & 0xff);
+  }
+
+  // readCPixels() reads count compressed pixels into dst at off.
+
+  public final void readCPixels(int[] dst, int off, int count) throws Exception {
+    while (count > 0) {
+      int n = check(3, count);
+      byte[] buf = b;
+      int p = ptr;
+      for (int i = 0; i < n; i++) {
+        int q = p + i * 3;
+        dst[off + i] = (buf[q + 2] & 0xff) << 16 | (buf[q + 1] & 0xff) << 8 | (buf[q] & 0xff);
+      }
+      ptr = p + n * 3;
+      off += n;
+      count -= n;
+    }
+  }
+
+  // readRunLength() reads a run length: bytes of 255 followed by a smaller
+  // one.  The run is one longer than their sum.
+
+  public final int readRunLength() throws Exception {
+    int len = 1;
+    while (true) {
+      if (ptr == end)
+        check(1);
+      int v = b[ptr++] & 0xff;
+      len += v;
+      if (v != 255)
+        return len;
+    }
+  }
+
+  // readPackedRow() reads a row of w palette indices of bits bits each, most
+  // significant first and padded to a whole byte, and stores their palette
+  // entries into dst at off.
+
+  public final void readPackedRow(int[] dst, int off, int w, int bits, int[] palette) throws Exception {
+    int rowBytes = (w * bits + 7) >> 3;
+    check(rowBytes);
+    byte[] buf = b;
+    int p = ptr;
+    int mask = ((1 << bits) - 1) & 127;
+    int v = 0;
+    int nbits = 0;
+    for (int end_ = off + w; off < end_; off++) {
+      if (nbits == 0) {
+        v = buf[p++] & 0xff;
+        nbits = 8;
+      }
+      nbits -= bits;
+      dst[off] = palette[(v >> nbits) & mask];
+    }
+    ptr += rowBytes;
+  }
+
   // readOpaqueN() reads a quantity "without byte-swapping".  Because java has
   // no byte-ordering, we just use big-endian.
 
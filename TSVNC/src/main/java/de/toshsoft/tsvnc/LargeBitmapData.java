@@ -113,19 +113,21 @@ class LargeBitmapData extends AbstractBitmapData {
 	 * @see android.androidVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
 	 */
 	@Override
-	void copyRect(Rect src, Rect dest, Paint paint) {
-		// TODO copy rect working?
-		throw new RuntimeException( "copyrect Not implemented");
-	}
-
-	/* (non-Javadoc)
-	 * @see android.androidVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
-	 */
-	@Override
-	void drawRect(int x, int y, int w, int h, Paint paint) {
-		x-=xoffset;
-		y-=yoffset;
-		memGraphics.drawRect(x, y, x+w, y+h, paint);
+	synchronized void copyRect(Rect src, Rect dest, Paint paint) {
+		ObjectPool.Entry<Rect> entry = rectPool.reserve();
+		Rect r = entry.get();
+		r.set(src.left - xoffset, src.top - yoffset, src.right - xoffset, src.bottom - yoffset);
+		if (r.left >= 0 && r.top >= 0 && r.right <= bitmapwidth && r.bottom <= bitmapheight)
+		{
+			OverlappingCopy.Copy(mbitmap, memGraphics, paint, r, dest.left - xoffset, dest.top - yoffset, rectPool);
+			addDamage(dest.left, dest.top, dest.width(), dest.height());
+		}
+		else
+		{
+			// Source is not in the buffer; ask for the destination pixels instead
+			invalidList.add(dest);
+		}
+		rectPool.release(entry);
 	}
 
 	/* (non-Javadoc)
@@ -185,6 +187,16 @@ class LargeBitmapData extends AbstractBitmapData {
 	@Override
 	void updateBitmap(int x, int y, int w, int h) {
 		mbitmap.setPixels(bitmapPixels, offset(x,y), bitmapwidth, x-xoffset, y-yoffset, w, h);
+		addDamage(x, y, w, h);
+	}
+
+	/* (non-Javadoc)
+	 * @see de.toshsoft.tsvnc.AbstractBitmapData#pixelsCoverFramebuffer()
+	 */
+	@Override
+	boolean pixelsCoverFramebuffer() {
+		// Only the scrolled-to window
+		return false;
 	}
 
 	/* (non-Javadoc)
@@ -227,6 +239,14 @@ class LargeBitmapData extends AbstractBitmapData {
 		rfb.writeFramebufferUpdateRequest(xoffset, yoffset, bitmapwidth, bitmapheight, incremental);
 	}
 
+	/* (non-Javadoc)
+	 * @see android.androidVNC.AbstractBitmapData#writeEnableContinuousUpdates()
+	 */
+	@Override
+	synchronized void writeEnableContinuousUpdates() throws IOException {
+		rfb.writeEnableContinuousUpdates(true, xoffset, yoffset, bitmapwidth, bitmapheight);
+	}
+
 	/* (non-Javadoc)
 	 * @see android.androidVNC.AbstractBitmapData#syncScroll()
 	 */
@@ -244,6 +264,19 @@ class LargeBitmapData extends AbstractBitmapData {
 		invalidList.intersect(bitmapRect);
 		if ( deltaX != 0 || deltaY != 0)
 		{
+			// The whole bitmap is shown at the new offset
+			addDamage(xoffset, yoffset, bitmapwidth, bitmapheight);
+			if (rfb.continuousUpdatesActive && ! rfb.continuousUpdatesStopping)
+			{
+				try
+				{
+					writeEnableContinuousUpdates();
+				}
+				catch (IOException ioe)
+				{
+					android.util.Log.w("LBM", "Could not move continuous updates to the new offset", ioe);
+				}
+			}
 			boolean didOverlapping = false;
 			if (Math.abs(deltaX) < bitmapwidth && Math.abs(deltaY) < bitmapheight) {
 				ObjectPool.Entry<Rect> sourceEntry = rectPool.reserve();
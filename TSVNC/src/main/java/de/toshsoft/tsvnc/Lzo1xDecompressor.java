@@ -0,0 +1,205 @@
+package de.toshsoft.tsvnc;
+
+//
+// Decompressor for LZO1X data, as sent by UltraVNC for the Ultra encoding.
+// Follows the reference lzo1x_decompress_safe(): every literal run and match
+// is checked against the input, the output and the already decoded data, so
+// a corrupt stream throws instead of running over the arrays.  No memory is
+// allocated.
+//
+
+final class Lzo1xDecompressor {
+
+  // Decoder states, named after the labels of the reference implementation
+  private static final int LOOP = 0;
+  private static final int FIRST_LITERAL_RUN = 1;
+  private static final int MATCH = 2;
+  private static final int MATCH_DONE = 3;
+  private static final int MATCH_NEXT = 4;
+
+  private Lzo1xDecompressor() {}
+
+  //
+  // Decompress inLen bytes at inOff into out at outOff, writing at most
+  // outLen bytes.  Returns the number of bytes written.
+  //
+
+  static int decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen)
+       throws Exception
+  {
+    int ip = inOff;
+    int ipEnd = inOff + inLen;
+    int op = outOff;
+    int opEnd = outOff + outLen;
+    int t = 0;
+    int m;
+    int state = LOOP;
+
+    if (inLen < 3)
+      throw new Exception("LZO: input too short");
+
+    if ((in[ip] & 0xff) > 17) {
+      t = (in[ip++] & 0xff) - 17;
+      if (t < 4) {
+        state = MATCH_NEXT;
+      } else {
+        checkLiterals(ip, ipEnd, op, opEnd, t);
+        System.arraycopy(in, ip, out, op, t);
+        ip += t;
+        op += t;
+        state = FIRST_LITERAL_RUN;
+      }
+    }
+
+    for (;;) {
+      switch (state) {
+      case LOOP:
+        checkInput(ip, ipEnd, 1);
+        t = in[ip++] & 0xff;
+        if (t >= 16) {
+          state = MATCH;
+          break;
+        }
+        // A literal run
+        if (t == 0) {
+          while (true) {
+            checkInput(ip, ipEnd, 1);
+            if (in[ip] != 0)
+              break;
+            t += 255;
+            ip++;
+          }
+          t += 15 + (in[ip++] & 0xff);
+        }
+        t += 3;
+        checkLiterals(ip, ipEnd, op, opEnd, t);
+        System.arraycopy(in, ip, out, op, t);
+        ip += t;
+        op += t;
+        // fall through
+
+      case FIRST_LITERAL_RUN:
+        checkInput(ip, ipEnd, 1);
+        t = in[ip++] & 0xff;
+        if (t >= 16) {
+          state = MATCH;
+          break;
+        }
+        // Three byte match right after a literal run
+        checkInput(ip, ipEnd, 1);
+        m = op - (1 + 0x0800) - (t >> 2) - ((in[ip++] & 0xff) << 2);
+        copyMatch(out, outOff, m, op, opEnd, 3);
+        op += 3;
+        state = MATCH_DONE;
+        break;
+
+      case MATCH:
+        if (t >= 64) {
+          // M2: 3 to 8 bytes, offset up to 2048
+          checkInput(ip, ipEnd, 1);
+          m = op - 1 - ((t >> 2) & 7) - ((in[ip++] & 0xff) << 3);
+          t = (t >> 5) - 1;
+        } else if (t >= 32) {
+          // M3: offset up to 16384
+          t &= 31;
+          if (t == 0) {
+            while (true) {
+              checkInput(ip, ipEnd, 1);
+              if (in[ip] != 0)
+                break;
+              t += 255;
+              ip++;
+            }
+            t += 31 + (in[ip++] & 0xff);
+          }
+          checkInput(ip, ipEnd, 2);
+          m = op - 1 - ((in[ip] & 0xff) >> 2) - ((in[ip + 1] & 0xff) << 6);
+          ip += 2;
+        } else if (t >= 16) {
+          // M4: offset up to 49151, or the end of stream marker
+          m = op - ((t & 8) << 11);
+          t &= 7;
+          if (t == 0) {
+            while (true) {
+              checkInput(ip, ipEnd, 1);
+              if (in[ip] != 0)
+                break;
+              t += 255;
+              ip++;
+            }
+            t += 7 + (in[ip++] & 0xff);
+          }
+          checkInput(ip, ipEnd, 2);
+          m -= ((in[ip] & 0xff) >> 2) + ((in[ip + 1] & 0xff) << 6);
+          ip += 2;
+          if (m == op) {
+            if (ip != ipEnd)
+              throw new Exception("LZO: input not consumed");
+            return op - outOff;
+          }
+          m -= 0x4000;
+        } else {
+          // M1: two bytes from close by
+          checkInput(ip, ipEnd, 1);
+          m = op - 1 - (t >> 2) - ((in[ip++] & 0xff) << 2);
+          copyMatch(out, outOff, m, op, opEnd, 2);
+          op += 2;
+          state = MATCH_DONE;
+          break;
+        }
+        copyMatch(out, outOff, m, op, opEnd, t + 2);
+        op += t + 2;
+        // fall through
+
+      case MATCH_DONE:
+        // The low bits of the match's offset byte count trailing literals
+        t = in[ip - 2] & 3;
+        if (t == 0) {
+          state = LOOP;
+          break;
+        }
+        // fall through
+
+      case MATCH_NEXT:
+        checkLiterals(ip, ipEnd, op, opEnd, t);
+        System.arraycopy(in, ip, out, op, t);
+        ip += t;
+        op += t;
+        checkInput(ip, ipEnd, 1);
+        t = in[ip++] & 0xff;
+        state = MATCH;
+        break;
+      }
+    }
+  }
+
+  private static void checkInput(int ip, int ipEnd, int n) throws Exception {
+    if (ip + n > ipEnd)
+      throw new Exception("LZO: input overrun");
+  }
+
+  private static void checkLiterals(int ip, int ipEnd, int op, int opEnd, int n) throws Exception {
+    if (ip + n > ipEnd)
+      throw new Exception("LZO: input overrun");
+    if (op + n > opEnd)
+      throw new Exception("LZO: output overrun");
+  }
+
+  //
+  // Copy a match of n bytes from m to op.  A match may overlap its own
+  // output, repeating the last op - m bytes.
+  //
+
+  private static void copyMatch(byte[] out, int outOff, int m, int op, int opEnd, int n) throws Exception {
+    if (m < outOff)
+      throw new Exception("LZO: lookbehind overrun");
+    if (op + n > opEnd)
+      throw new Exception("LZO: output overrun");
+    if (op - m >= n) {
+      System.arraycopy(out, m, out, op, n);
+    } else {
+      for (int i = 0; i < n; i++)
+        out[op + i] = out[m + i];
+    }
+  }
+}
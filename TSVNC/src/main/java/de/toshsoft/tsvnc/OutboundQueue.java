@@ -0,0 +1,200 @@
+package de.toshsoft.tsvnc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Sends client messages to the server from a single writer thread.
+ * <p>
+ * Messages are copied into a preallocated ring of slots as they are queued, so callers
+ * may reuse their buffers at once, and are written strictly in the order they were
+ * queued.  Everything queued by the time the writer wakes up goes out in one write.
+ * Queueing only blocks while the ring is full.
+ * <p>
+ * Pointer moves are merged while they wait: see {@link #writePointerEvent}.
+ */
+class OutboundQueue implements Runnable {
+	private final static String TAG = "OutboundQueue";
+
+	/**
+	 * Number of messages that can be queued
+	 */
+	static final int SLOTS = 64;
+
+	/**
+	 * Initial size of a slot; large enough for every message but SetEncodings and chat text
+	 */
+	static final int SLOT_SIZE = 32;
+
+	private final OutputStream os;
+	private final byte[][] slots = new byte[SLOTS][];
+	private final int[] slotLength = new int[SLOTS];
+	// True for slots holding a single PointerEvent that may still be merged
+	private final boolean[] slotPointer = new boolean[SLOTS];
+	private int head;
+	private int count;
+	private boolean closed;
+	private IOException failure;
+
+	// Only used by the writer thread
+	private byte[] batch = new byte[SLOTS * SLOT_SIZE];
+
+	OutboundQueue(OutputStream os)
+	{
+		this.os = os;
+		for (int i = 0; i < SLOTS; i++)
+			slots[i] = new byte[SLOT_SIZE];
+		Thread writer = new Thread(this, "RfbWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue a message
+	 * @param b Buffer holding the message; copied before returning
+	 * @param off Offset of the message in the buffer
+	 * @param len Length of the message
+	 * @throws IOException The queue is closed or an earlier write failed
+	 */
+	synchronized void write(byte[] b, int off, int len) throws IOException
+	{
+		int i = reserveSlot(len);
+		System.arraycopy(b, off, slots[i], 0, len);
+		slotPointer[i] = false;
+		commitSlot(i, len);
+	}
+
+	/**
+	 * Queue a PointerEvent message.  If the message queued last is a PointerEvent with the
+	 * same button mask that the writer has not picked up yet, its position is replaced
+	 * instead, so moves do not pile up behind a slow connection.  Button changes are never
+	 * merged.
+	 * @param b Buffer holding the 6 byte message; copied before returning
+	 * @param off Offset of the message in the buffer
+	 * @throws IOException The queue is closed or an earlier write failed
+	 */
+	synchronized void writePointerEvent(byte[] b, int off) throws IOException
+	{
+		if (count > 0 && failure == null && ! closed)
+		{
+			int last = (head + count - 1) % SLOTS;
+			if (slotPointer[last] && slots[last][1] == b[off + 1])
+			{
+				System.arraycopy(b, off, slots[last], 0, 6);
+				return;
+			}
+		}
+		int i = reserveSlot(6);
+		System.arraycopy(b, off, slots[i], 0, 6);
+		slotPointer[i] = true;
+		commitSlot(i, 6);
+	}
+
+	/**
+	 * Queue a single byte
+	 * @param b Value of the byte
+	 * @throws IOException The queue is closed or an earlier write failed
+	 */
+	synchronized void write(int b) throws IOException
+	{
+		int i = reserveSlot(1);
+		slots[i][0] = (byte)b;
+		slotPointer[i] = false;
+		commitSlot(i, 1);
+	}
+
+	/**
+	 * Stop the writer; messages not written yet are dropped
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	private int reserveSlot(int len) throws IOException
+	{
+		while (count == SLOTS && failure == null && ! closed)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ie)
+			{
+				throw new InterruptedIOException("Interrupted while queueing output");
+			}
+		}
+		if (failure != null)
+			throw new IOException("Earlier write failed: " + failure.getMessage());
+		if (closed)
+			throw new IOException("Connection closed");
+		int i = (head + count) % SLOTS;
+		if (slots[i].length < len)
+			slots[i] = new byte[len];
+		return i;
+	}
+
+	private void commitSlot(int i, int len)
+	{
+		slotLength[i] = len;
+		if (count++ == 0)
+			notifyAll();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				int len = 0;
+				synchronized (this)
+				{
+					while (count == 0 && ! closed)
+						wait();
+					if (closed)
+						return;
+					// Coalesce everything queued into one write
+					for (int k = 0; k < count; k++)
+					{
+						int i = (head + k) % SLOTS;
+						if (len + slotLength[i] > batch.length)
+						{
+							byte[] larger = new byte[Math.max(batch.length * 2, len + slotLength[i])];
+							System.arraycopy(batch, 0, larger, 0, len);
+							batch = larger;
+						}
+						System.arraycopy(slots[i], 0, batch, len, slotLength[i]);
+						len += slotLength[i];
+					}
+					head = (head + count) % SLOTS;
+					count = 0;
+					notifyAll();
+				}
+				os.write(batch, 0, len);
+				os.flush();
+			}
+		}
+		catch (IOException ioe)
+		{
+			Log.w(TAG, "Write failed: " + ioe.getMessage());
+			synchronized (this)
+			{
+				failure = ioe;
+				notifyAll();
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			// Shutting down
+		}
+	}
+}
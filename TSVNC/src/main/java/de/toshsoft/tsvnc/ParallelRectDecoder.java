@@ -0,0 +1,377 @@
+package de.toshsoft.tsvnc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decodes the Raw, RRE, CoRRE and Hextile rects of a FramebufferUpdate on a fork-join pool.
+ * <p>
+ * These encodings keep no decoder state from one rect to the next.  The protocol thread
+ * reads a rect's bytes with {@link #submit}, which hands them to the pool and returns, so
+ * it can read the next rect while this one is being decoded into bitmapPixels.  Rects that
+ * overlap one still being decoded wait for it, and {@link #finish} is the barrier before
+ * anything else touches the pixels: other encodings, a size change, or publishing the
+ * update.
+ * <p>
+ * Tasks time their own decoding, which {@link #finish} reports to the
+ * AdaptiveEncodingController; the protocol thread only reads those rects.
+ * <p>
+ * Only for bitmap data whose bitmapPixels hold the whole framebuffer.
+ */
+class ParallelRectDecoder {
+	/**
+	 * Larger rects are decoded on the protocol thread; one rect gains nothing from the pool
+	 */
+	static final int MAX_PIXELS = 1024 * 1024;
+
+	/**
+	 * With this many bytes waiting to be decoded, finish them before reading more
+	 */
+	static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+	private final ForkJoinPool pool = new ForkJoinPool();
+
+	/**
+	 * A submitted rect; decodeNanos is set by its task
+	 */
+	private static class Rect
+	{
+		final int encoding;
+		final int x, y, w, h;
+		long decodeNanos;
+
+		Rect(int encoding, int x, int y, int w, int h)
+		{
+			this.encoding = encoding;
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+		}
+	}
+
+	// Rects being decoded, with their tasks and buffers
+	private final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+	private final ArrayList<Rect> rects = new ArrayList<Rect>();
+	// Rects decoded since the last finish(), for the bitmap update
+	private final ArrayList<Rect> decoded = new ArrayList<Rect>();
+	private final ArrayList<byte[]> used = new ArrayList<byte[]>();
+	private final ArrayList<byte[]> free = new ArrayList<byte[]>();
+	private int pendingBytes;
+
+	// Payload of the rect being read
+	private byte[] buf;
+	private int len;
+
+	/**
+	 * @return True if rects of the encoding and size can be decoded on the pool
+	 */
+	static boolean canDecode(int encoding, int w, int h)
+	{
+		if (w * h > MAX_PIXELS)
+			return false;
+		switch (encoding)
+		{
+		case RfbProto.EncodingRaw:
+		case RfbProto.EncodingRRE:
+		case RfbProto.EncodingCoRRE:
+		case RfbProto.EncodingHextile:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Read a rect from the protocol stream and start decoding it
+	 * @param rfb Protocol positioned at the rect's payload
+	 * @param encoding One the pool can decode, see {@link #canDecode}
+	 * @param bytesPerPixel Of the current pixel format, 1 or 4
+	 * @param palette Colors for 1 byte pixels
+	 * @param pixels Framebuffer pixels to decode into
+	 * @param stride Framebuffer width
+	 */
+	void submit(RfbProto rfb, final int encoding, final int x, final int y, final int w, final int h,
+			final int bytesPerPixel, final int[] palette, final int[] pixels, final int stride) throws IOException
+	{
+		if (pendingBytes > MAX_PENDING_BYTES)
+			join();
+		for (Rect r : rects)
+		{
+			if (x < r.x + r.w && r.x < x + w && y < r.y + r.h && r.y < y + h)
+			{
+				join();
+				break;
+			}
+		}
+
+		len = 0;
+		buf = acquire(256);
+		switch (encoding)
+		{
+		case RfbProto.EncodingRaw:
+			read(rfb, w * h * bytesPerPixel);
+			break;
+		case RfbProto.EncodingRRE:
+		case RfbProto.EncodingCoRRE:
+			read(rfb, 4 + bytesPerPixel);
+			int nSubrects = (buf[0] & 0xff) << 24 | (buf[1] & 0xff) << 16 | (buf[2] & 0xff) << 8 | (buf[3] & 0xff);
+			read(rfb, nSubrects * (bytesPerPixel + (encoding == RfbProto.EncodingRRE ? 8 : 4)));
+			break;
+		case RfbProto.EncodingHextile:
+			readHextile(rfb, x, y, w, h, bytesPerPixel);
+			break;
+		}
+
+		final byte[] data = buf;
+		used.add(data);
+		final Rect rect = new Rect(encoding, x, y, w, h);
+		rects.add(rect);
+		pendingBytes += len;
+		// Nothing is written outside the rect, whatever its data says
+		final int[] clip = { x, y, Math.min(x + w, stride), Math.min(y + h, pixels.length / stride) };
+		tasks.add(pool.submit(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				switch (encoding)
+				{
+				case RfbProto.EncodingRaw:
+					decodeRaw(data, 0, x, y, w, h, bytesPerPixel, palette, pixels, stride, clip);
+					break;
+				case RfbProto.EncodingRRE:
+				case RfbProto.EncodingCoRRE:
+					decodeRRE(data, x, y, w, h, encoding == RfbProto.EncodingCoRRE, bytesPerPixel, palette, pixels, stride, clip);
+					break;
+				case RfbProto.EncodingHextile:
+					decodeHextile(data, x, y, w, h, bytesPerPixel, palette, pixels, stride, clip);
+					break;
+				}
+				// Seen by the protocol thread once it has joined the task
+				rect.decodeNanos = System.nanoTime() - start;
+			}
+		}));
+	}
+
+	/**
+	 * Wait until every submitted rect is decoded, and update the bitmap with them
+	 * @param bitmapData Bitmap data the rects were decoded into
+	 * @param adaptiveEncoding Gets the time each rect took to decode
+	 * @return True if there were any rects
+	 */
+	boolean finish(AbstractBitmapData bitmapData, AdaptiveEncodingController adaptiveEncoding)
+	{
+		join();
+		if (decoded.isEmpty())
+			return false;
+		for (Rect r : decoded)
+		{
+			bitmapData.updateBitmap(r.x, r.y, r.w, r.h);
+			adaptiveEncoding.recordDecode(r.encoding, r.w * r.h, r.decodeNanos, 0);
+		}
+		decoded.clear();
+		return true;
+	}
+
+	/**
+	 * Stop the pool; rects still being decoded are dropped
+	 */
+	void close()
+	{
+		pool.shutdownNow();
+	}
+
+	private void join()
+	{
+		// Rethrows what went wrong in a task
+		for (ForkJoinTask<?> task : tasks)
+			task.join();
+		tasks.clear();
+		decoded.addAll(rects);
+		rects.clear();
+		free.addAll(used);
+		used.clear();
+		pendingBytes = 0;
+	}
+
+	private byte[] acquire(int size)
+	{
+		for (int i = free.size() - 1; i >= 0; i--)
+		{
+			if (free.get(i).length >= size)
+				return free.remove(i);
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Append n bytes of the protocol stream to buf
+	 */
+	private void read(RfbProto rfb, int n) throws IOException
+	{
+		if (len + n > buf.length)
+		{
+			byte[] larger = acquire(Math.max(buf.length * 2, len + n));
+			System.arraycopy(buf, 0, larger, 0, len);
+			free.add(buf);
+			buf = larger;
+		}
+		rfb.readFully(buf, len, n);
+		len += n;
+	}
+
+	/**
+	 * Hextile rects carry no length; walk the tile headers to find it
+	 */
+	private void readHextile(RfbProto rfb, int x, int y, int w, int h, int bytesPerPixel) throws IOException
+	{
+		for (int ty = y; ty < y + h; ty += 16)
+		{
+			int th = Math.min(y + h - ty, 16);
+			for (int tx = x; tx < x + w; tx += 16)
+			{
+				int tw = Math.min(x + w - tx, 16);
+				read(rfb, 1);
+				int subencoding = buf[len - 1] & 0xff;
+				if ((subencoding & RfbProto.HextileRaw) != 0)
+				{
+					read(rfb, tw * th * bytesPerPixel);
+					continue;
+				}
+				int n = 0;
+				if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+					n += bytesPerPixel;
+				if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+					n += bytesPerPixel;
+				if ((subencoding & RfbProto.HextileAnySubrects) != 0)
+					n++;
+				read(rfb, n);
+				if ((subencoding & RfbProto.HextileAnySubrects) != 0)
+				{
+					int nSubrects = buf[len - 1] & 0xff;
+					int subrectSize = (subencoding & RfbProto.HextileSubrectsColoured) != 0 ? 2 + bytesPerPixel : 2;
+					read(rfb, nSubrects * subrectSize);
+				}
+			}
+		}
+	}
+
+	//
+	// The decoders, run on the pool.  They only write the pixels of their rect,
+	// clipped to the framebuffer: clip holds its left, top, right and bottom.
+	//
+
+	private static int color(byte[] b, int i, int bytesPerPixel, int[] palette)
+	{
+		if (bytesPerPixel == 1)
+			return palette[0xFF & b[i]];
+		return 0xFF000000 | (b[i + 2] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i] & 0xFF);
+	}
+
+	private static void fill(int[] pixels, int stride, int[] clip, int x, int y, int w, int h, int color)
+	{
+		int left = Math.max(x, clip[0]);
+		int top = Math.max(y, clip[1]);
+		int right = Math.min(x + w, clip[2]);
+		int bottom = Math.min(y + h, clip[3]);
+		if (left >= right)
+			return;
+		int offset = top * stride;
+		for (int j = top; j < bottom; j++, offset += stride)
+			Arrays.fill(pixels, offset + left, offset + right, color);
+	}
+
+	private static void decodeRaw(byte[] b, int i, int x, int y, int w, int h, int bytesPerPixel, int[] palette, int[] pixels, int stride, int[] clip)
+	{
+		int left = Math.max(x, clip[0]);
+		int right = Math.min(x + w, clip[2]);
+		int bottom = Math.min(y + h, clip[3]);
+		for (int dy = Math.max(y, clip[1]); dy < bottom; dy++)
+		{
+			int row = i + ((dy - y) * w - x) * bytesPerPixel;
+			int offset = dy * stride;
+			for (int dx = left; dx < right; dx++)
+				pixels[offset + dx] = color(b, row + dx * bytesPerPixel, bytesPerPixel, palette);
+		}
+	}
+
+	private static void decodeRRE(byte[] b, int x, int y, int w, int h, boolean compact, int bytesPerPixel, int[] palette, int[] pixels, int stride, int[] clip)
+	{
+		int nSubrects = (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+		fill(pixels, stride, clip, x, y, w, h, color(b, 4, bytesPerPixel, palette));
+		int i = 4 + bytesPerPixel;
+		for (int j = 0; j < nSubrects; j++)
+		{
+			int pixel = color(b, i, bytesPerPixel, palette);
+			i += bytesPerPixel;
+			int sx, sy, sw, sh;
+			if (compact)
+			{
+				sx = b[i++] & 0xFF;
+				sy = b[i++] & 0xFF;
+				sw = b[i++] & 0xFF;
+				sh = b[i++] & 0xFF;
+			}
+			else
+			{
+				sx = (b[i] & 0xff) << 8 | (b[i + 1] & 0xff);
+				sy = (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+				sw = (b[i + 4] & 0xff) << 8 | (b[i + 5] & 0xff);
+				sh = (b[i + 6] & 0xff) << 8 | (b[i + 7] & 0xff);
+				i += 8;
+			}
+			fill(pixels, stride, clip, x + sx, y + sy, sw, sh, pixel);
+		}
+	}
+
+	private static void decodeHextile(byte[] b, int x, int y, int w, int h, int bytesPerPixel, int[] palette, int[] pixels, int stride, int[] clip)
+	{
+		// Kept from tile to tile, like in VncCanvas.handleHextileSubrect
+		int bg = 0xFF000000;
+		int fg = 0xFF000000;
+		int i = 0;
+		for (int ty = y; ty < y + h; ty += 16)
+		{
+			int th = Math.min(y + h - ty, 16);
+			for (int tx = x; tx < x + w; tx += 16)
+			{
+				int tw = Math.min(x + w - tx, 16);
+				int subencoding = b[i++] & 0xff;
+				if ((subencoding & RfbProto.HextileRaw) != 0)
+				{
+					decodeRaw(b, i, tx, ty, tw, th, bytesPerPixel, palette, pixels, stride, clip);
+					i += tw * th * bytesPerPixel;
+					continue;
+				}
+				if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+				{
+					bg = color(b, i, bytesPerPixel, palette);
+					i += bytesPerPixel;
+				}
+				fill(pixels, stride, clip, tx, ty, tw, th, bg);
+				if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+				{
+					fg = color(b, i, bytesPerPixel, palette);
+					i += bytesPerPixel;
+				}
+				if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+					continue;
+				int nSubrects = b[i++] & 0xff;
+				boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+				for (int j = 0; j < nSubrects; j++)
+				{
+					if (coloured)
+					{
+						fg = color(b, i, bytesPerPixel, palette);
+						i += bytesPerPixel;
+					}
+					int b1 = b[i++] & 0xFF;
+					int b2 = b[i++] & 0xFF;
+					fill(pixels, stride, clip, tx + (b1 >> 4), ty + (b1 & 0xf), (b2 >> 4) + 1, (b2 & 0xf) + 1, fg);
+				}
+			}
+		}
+	}
+}
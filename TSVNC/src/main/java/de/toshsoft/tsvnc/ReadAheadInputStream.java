@@ -0,0 +1,196 @@
+package de.toshsoft.tsvnc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads from the socket on its own thread, ahead of the protocol thread.
+ * <p>
+ * The reader fills chunks from a fixed pool and queues them in order; the protocol thread
+ * consumes them and hands them back.  The socket is drained while a large rect is being
+ * decoded, so the server is not stalled by a full TCP receive window.  When all chunks are
+ * full the reader waits, which leaves flow control to TCP again.
+ * <p>
+ * Because data is usually buffered before the protocol thread asks for it, the time spent
+ * in reads no longer says how fast the link is.  The reader measures that instead:
+ * see {@link #getTransfer}.
+ */
+class ReadAheadInputStream extends InputStream implements Runnable {
+	private final static String TAG = "ReadAhead";
+
+	/**
+	 * Number of chunks in the pool
+	 */
+	static final int CHUNKS = 16;
+
+	/**
+	 * Size of a chunk; the reader asks the socket for up to this much at a time
+	 */
+	static final int CHUNK_SIZE = 32768;
+
+	private final InputStream in;
+	private final byte[][] chunks = new byte[CHUNKS][];
+	private final int[] chunkLength = new int[CHUNKS];
+	// Chunks filled by the reader and not consumed yet, starting at head
+	private int head;
+	private int count;
+	private boolean eof;
+	private IOException failure;
+
+	// Transfer measurement, see getTransfer()
+	volatile boolean timing;
+	private long transferNanos;
+	private long transferBytes;
+
+	// Only used by the protocol thread: the chunk being consumed
+	private byte[] current;
+	private int currentPos;
+	private int currentEnd;
+
+	ReadAheadInputStream(InputStream in)
+	{
+		this.in = in;
+		for (int i = 0; i < CHUNKS; i++)
+			chunks[i] = new byte[CHUNK_SIZE];
+		Thread reader = new Thread(this, "RfbReader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (currentPos == currentEnd && ! nextChunk())
+			return -1;
+		return current[currentPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (currentPos == currentEnd && ! nextChunk())
+			return -1;
+		int n = Math.min(len, currentEnd - currentPos);
+		System.arraycopy(current, currentPos, b, off, n);
+		currentPos += n;
+		return n;
+	}
+
+	@Override
+	public int available()
+	{
+		return currentEnd - currentPos;
+	}
+
+	/**
+	 * Get the totals for data received while the link was busy
+	 * @param result Set to the time spent receiving in ns, and the number of bytes received
+	 */
+	synchronized void getTransfer(long[] result)
+	{
+		result[0] = transferNanos;
+		result[1] = transferBytes;
+	}
+
+	/**
+	 * Hand the consumed chunk back to the reader and wait for the next one
+	 * @return False at the end of the stream
+	 */
+	private synchronized boolean nextChunk() throws IOException
+	{
+		if (current != null)
+		{
+			// The consumed chunk is always the oldest one
+			head = (head + 1) % CHUNKS;
+			count--;
+			current = null;
+			notifyAll();
+		}
+		while (count == 0 && failure == null && ! eof)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ie)
+			{
+				throw new InterruptedIOException("Interrupted while waiting for input");
+			}
+		}
+		if (count == 0)
+		{
+			if (failure != null)
+				throw failure;
+			return false;
+		}
+		current = chunks[head];
+		currentPos = 0;
+		currentEnd = chunkLength[head];
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				int i;
+				boolean busy;
+				synchronized (this)
+				{
+					// The chunk being consumed stays in the ring until it is handed back
+					while (count == CHUNKS)
+						wait();
+					i = (head + count) % CHUNKS;
+					// With data queued beyond the chunk being consumed, or a rect being
+					// decoded, the server is in the middle of sending; otherwise the link
+					// may just be idle
+					busy = count > (current != null ? 1 : 0) || timing;
+				}
+				long before = System.nanoTime();
+				int n = in.read(chunks[i], 0, CHUNK_SIZE);
+				long after = System.nanoTime();
+				synchronized (this)
+				{
+					if (n < 0)
+					{
+						eof = true;
+						notifyAll();
+						return;
+					}
+					if (busy)
+					{
+						transferNanos += after - before;
+						transferBytes += n;
+					}
+					chunkLength[i] = n;
+					if (count++ == 0)
+						notifyAll();
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			Log.w(TAG, "Read failed: " + ioe.getMessage());
+			synchronized (this)
+			{
+				failure = ioe;
+				notifyAll();
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			// Shutting down
+		}
+	}
+}
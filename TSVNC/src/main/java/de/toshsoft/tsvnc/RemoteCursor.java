@@ -0,0 +1,32 @@
+package de.toshsoft.tsvnc;
+
+import android.graphics.Bitmap;
+
+/**
+ * Cursor shape sent by the server with the RichCursor or XCursor pseudo-encodings.
+ * Instances are immutable, so the drawing thread can pick up the current shape
+ * without locking.  An empty shape hides the cursor and has no bitmap.
+ */
+class RemoteCursor {
+	final Bitmap bitmap;
+	final int hotX;
+	final int hotY;
+	final int width;
+	final int height;
+
+	/**
+	 * @param argb Cursor pixels, transparent where the cursor mask is not set
+	 * @param w
+	 * @param h
+	 * @param hotX Hotspot relative to the top left corner of the cursor
+	 * @param hotY
+	 */
+	RemoteCursor(int[] argb, int w, int h, int hotX, int hotY)
+	{
+		bitmap = w > 0 && h > 0 ? Bitmap.createBitmap(argb, w, h, Bitmap.Config.ARGB_8888) : null;
+		width = w;
+		height = h;
+		this.hotX = hotX;
+		this.hotY = hotY;
+	}
+}
@@ -0,0 +1,67 @@
+package de.toshsoft.tsvnc;
+
+//
+// An RfbInStream reads straight from the protocol input of an RfbProto.
+// Encodings like TRLE carry no length, so it never reads more than the
+// decoder asks for; when the decoder is done the protocol stream is
+// positioned at the next rectangle.
+//
+// For payloads of known length, like ZRLE's, setLimit() lets it read
+// ahead whatever has arrived, up to the end of the payload.
+//
+
+public class RfbInStream extends InStream {
+
+  static final int defaultBufSize = 8192;
+
+  public RfbInStream(RfbProto rfb_, int bufSize_) {
+    rfb = rfb_;
+    b = new byte[bufSize_];
+    ptr = end = ptrOffset = 0;
+    limit = -1;
+  }
+
+  public RfbInStream(RfbProto rfb_) { this(rfb_, defaultBufSize); }
+
+  // Read at most the next len bytes of the protocol stream, as fast as they
+  // arrive.  A limit of -1 only reads what the decoder asks for.
+  public void setLimit(int len) { limit = len; }
+
+  public int pos() { return ptrOffset + ptr; }
+
+  protected int overrun(int itemSize, int nItems) throws Exception {
+    if (itemSize > b.length)
+      throw new Exception("RfbInStream overrun: max itemSize exceeded");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    ptrOffset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    // Only whole items that were asked for, so nothing is left over once
+    // the caller has consumed them.
+    if (nItems > b.length / itemSize)
+      nItems = b.length / itemSize;
+    int wanted = itemSize * nItems;
+    if (wanted > end) {
+      int n = wanted - end;
+      if (limit >= 0) {
+        if (n > limit)
+          throw new Exception("RfbInStream overrun: end of payload");
+        // Whatever else has arrived already, up to the end of the payload
+        n = Math.max(n, Math.min(Math.min(limit, b.length - end), rfb.is.available()));
+        limit -= n;
+      }
+      rfb.readFully(b, end, n);
+      end += n;
+    }
+
+    return nItems;
+  }
+
+  private RfbProto rfb;
+  private int ptrOffset;
+  private int limit;
+}
@@ -28,14 +28,10 @@ package de.toshsoft.tsvnc;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 //- import java.awt.*;
 //- import java.awt.event.*;
@@ -100,7 +96,9 @@ class RfbProto {
     SetColourMapEntries = 1,
     Bell                = 2,
     ServerCutText       = 3,
-    TextChat 			= 11;
+    TextChat 			= 11,
+    EndOfContinuousUpdates = 150,
+    ServerFence         = 248;
 
   // Client-to-server messages
   final static int
@@ -110,7 +108,10 @@ class RfbProto {
     FramebufferUpdateRequest = 3,
     KeyboardEvent            = 4,
     PointerEvent             = 5,
-    ClientCutText            = 6;
+    ClientCutText            = 6,
+    EnableContinuousUpdates  = 150,
+    SetDesktopSize           = 251,
+    ClientFence              = 248;
 
   // Supported encodings and pseudo-encodings
   final static int
@@ -121,6 +122,8 @@ class RfbProto {
     EncodingHextile        = 5,
     EncodingZlib           = 6,
     EncodingTight          = 7,
+    EncodingUltra          = 9,
+    EncodingTRLE           = 15,
     EncodingZRLE           = 16,
     EncodingCompressLevel0 = 0xFFFFFF00,
     EncodingQualityLevel0  = 0xFFFFFFE0,
@@ -128,7 +131,10 @@ class RfbProto {
     EncodingRichCursor     = 0xFFFFFF11,
     EncodingPointerPos     = 0xFFFFFF18,
     EncodingLastRect       = 0xFFFFFF20,
-    EncodingNewFBSize      = 0xFFFFFF21;
+    EncodingNewFBSize      = 0xFFFFFF21,
+    EncodingExtendedDesktopSize = 0xFFFFFECC,
+    EncodingContinuousUpdates = 0xFFFFFEC7,
+    EncodingFence          = 0xFFFFFEC8;
   final static String
     SigEncodingRaw            = "RAW_____",
     SigEncodingCopyRect       = "COPYRECT",
@@ -167,6 +173,28 @@ class RfbProto {
     TightFilterPalette  = 0x01,
     TightFilterGradient = 0x02;
 
+  // Fence flags
+  final static int
+    FenceFlagBlockBefore = 0x00000001,
+    FenceFlagBlockAfter  = 0x00000002,
+    FenceFlagSyncNext    = 0x00000004,
+    FenceFlagRequest     = 0x80000000,
+    FenceFlagsSupported  = FenceFlagBlockBefore | FenceFlagBlockAfter |
+                           FenceFlagSyncNext | FenceFlagRequest;
+
+  final static int MaxFenceLength = 64;
+
+  // ExtendedDesktopSize reasons and status codes
+  final static int
+    DesktopSizeReasonServer = 0,
+    DesktopSizeReasonClient = 1,
+    DesktopSizeReasonOtherClient = 2;
+  final static int
+    DesktopSizeStatusOk = 0,
+    DesktopSizeStatusProhibited = 1,
+    DesktopSizeStatusOutOfResources = 2,
+    DesktopSizeStatusInvalidLayout = 3;
+
   // Constants used for UltraVNC chat extension
   final static int
   	CHAT_OPEN = -1,
@@ -177,6 +205,7 @@ class RfbProto {
   int port;
   Socket sock;
   DataInputStream is;
+  ReadAheadInputStream readAhead;
   OutputStream os;
   
   DH dh;
@@ -218,40 +247,36 @@ class RfbProto {
   boolean timing;
   long timeWaitedIn100us;
   long timedKbits;
+  // Total time spent waiting in timed reads, only ever grows
+  long readWaitNanos;
+  // Time and bytes received by the reader thread, from getTransfer(), and
+  // how much of that is already counted in the rate
+  private final long[] transfer = new long[2];
+  private long countedTransferNanos, countedTransferBytes;
 
   // Protocol version and TightVNC-specific protocol options.
   int serverMajor, serverMinor;
+  // True if the server speaks the UltraVNC dialect
+  boolean ultraVncServer;
   int clientMajor, clientMinor;
   boolean protocolTightVNC;
   CapsContainer tunnelCaps, authCaps;
   CapsContainer serverMsgCaps, clientMsgCaps;
   CapsContainer encodingCaps;
 
+  // Flow control extensions.  Support is only known once the server has
+  // sent an EndOfContinuousUpdates message.
+  boolean supportsContinuousUpdates;
+  boolean continuousUpdatesActive;
+  // Set while continuous updates are being switched off; they only count as
+  // inactive once the server confirms with EndOfContinuousUpdates
+  boolean continuousUpdatesStopping;
+
   // If true, informs that the RFB socket was closed.
   private boolean closed;
 
-  // Get a ExecutorService with a single thread to do the background writing
-  // to the OutputStream
-  ThreadPoolExecutor executor;
-
-  // Queue so the executor never gets saturated
-  public final class ThreadPoolQueue extends ArrayBlockingQueue<Runnable> {
-
-    public ThreadPoolQueue(int capacity) {
-      super(capacity);
-    }
-
-    @Override
-    public boolean offer(Runnable e) {
-      try {
-        put(e);
-      } catch (InterruptedException e1) {
-        return false;
-      }
-      return true;
-    }
-
-  }
+  // All client messages go out through this queue, in order, from one thread
+  OutboundQueue outbound;
 
   //
   // Constructor. Make TCP connection to RFB server.
@@ -283,70 +308,37 @@ class RfbProto {
     } */
     //+
     sock = new Socket(host, port);
-    is = new DataInputStream(new BufferedInputStream(sock.getInputStream(),
-						     16384));
+    // The read-ahead stream buffers itself
+    readAhead = new ReadAheadInputStream(sock.getInputStream());
+    is = new DataInputStream(readAhead);
     os = sock.getOutputStream();
 
     timing = false;
     timeWaitedIn100us = 5;
     timedKbits = 0;
 
-    int n = Runtime.getRuntime().availableProcessors();
-    executor = new ThreadPoolExecutor(0, n, 1, TimeUnit.MINUTES, new ThreadPoolQueue(n));
-  }
-
-  void executeRunnable(Runnable task) {
-    try {
-      executor.execute(task);
-    } catch (Exception e) {
-      if(!executor.isShutdown())
-        executor.shutdown();
-    }
+    outbound = new OutboundQueue(os);
   }
 
-  void executeOutputStreamOnRunnable(final byte[] b) {
-    Runnable runnableTask = new Runnable() {
-      @Override
-      public void run() {
-        try {
-          os.write(b);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-    };
+  //
+  // Small messages like pointer events should not wait for more data to
+  // fill a segment; the outbound queue already batches them.
+  //
 
-    executeRunnable(runnableTask);
+  void setTcpNoDelay(boolean on) throws IOException {
+    sock.setTcpNoDelay(on);
   }
 
-  void executeOutputStreamOnRunnable(final int b) {
-    Runnable runnableTask = new Runnable() {
-      @Override
-      public void run() {
-        try {
-          os.write(b);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-    };
-
-    executeRunnable(runnableTask);
+  void queueOutput(byte[] b) throws IOException {
+    outbound.write(b, 0, b.length);
   }
 
-  void executeOutputStreamOnRunnable(final byte[] b, final int off, final int len) {
-    Runnable runnableTask = new Runnable() {
-      @Override
-      public void run() {
-        try {
-          os.write(b, off, len);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-    };
+  void queueOutput(int b) throws IOException {
+    outbound.write(b);
+  }
 
-    executeRunnable(runnableTask);
+  void queueOutput(byte[] b, int off, int len) throws IOException {
+    outbound.write(b, off, len);
   }
   
   synchronized void close() {
@@ -361,7 +353,7 @@ class RfbProto {
 	rec = null;
 	  
       } */
-      executor.shutdown();
+      outbound.close();
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -398,6 +390,10 @@ class RfbProto {
     if (serverMajor < 3) {
       throw new Exception("RFB server does not support protocol version 3");
     }
+
+    // Only UltraVNC announces these minor versions
+    if (serverMinor == 4 || serverMinor == 6)
+      ultraVncServer = true;
   }
 
 
@@ -409,13 +405,13 @@ class RfbProto {
     clientMajor = 3;
     if (serverMajor > 3 || serverMinor >= 8) {
       clientMinor = 8;
-      executeOutputStreamOnRunnable(versionMsg_3_8.getBytes());
+      queueOutput(versionMsg_3_8.getBytes());
     } else if (serverMinor >= 7) {
       clientMinor = 7;
-      executeOutputStreamOnRunnable(versionMsg_3_7.getBytes());
+      queueOutput(versionMsg_3_7.getBytes());
     } else {
       clientMinor = 3;
-      executeOutputStreamOnRunnable(versionMsg_3_3.getBytes());
+      queueOutput(versionMsg_3_3.getBytes());
     }
     protocolTightVNC = false;
   }
@@ -426,8 +422,11 @@ class RfbProto {
   //
 
   int negotiateSecurity(int bitPref) throws Exception {
-    return (clientMinor >= 7) ?
+    int secType = (clientMinor >= 7) ?
       selectSecurityType(bitPref) : readSecurityType(bitPref);
+    if (secType == SecTypeUltra34)
+      ultraVncServer = true;
+    return secType;
   }
 
   //
@@ -473,7 +472,7 @@ class RfbProto {
     for (int i = 0; i < nSecTypes; i++) {
       if (secTypes[i] == SecTypeTight) {
 	protocolTightVNC = true;
-	executeOutputStreamOnRunnable(SecTypeTight);
+	queueOutput(SecTypeTight);
 	return SecTypeTight;
       }
     }
@@ -489,7 +488,7 @@ class RfbProto {
     if (secType == SecTypeInvalid) {
       throw new Exception("Server did not offer supported security type");
     } else {
-      executeOutputStreamOnRunnable(secType);
+      queueOutput(secType);
     }
 
     return secType;
@@ -528,7 +527,7 @@ class RfbProto {
     des.encrypt(challenge, 0, challenge, 0);
     des.encrypt(challenge, 8, challenge, 8);
 
-    executeOutputStreamOnRunnable(challenge);
+    queueOutput(challenge);
 
     readSecurityResult("VNC authentication");
   }
@@ -579,7 +578,7 @@ class RfbProto {
 	dh = new DH(gen,mod);
 	long pub = dh.createInterKey();
 	
-	executeOutputStreamOnRunnable(DH.longToBytes(pub));
+	queueOutput(DH.longToBytes(pub));
   }
   
   void authenticateDH(String us,String pw) throws Exception
@@ -611,8 +610,8 @@ class RfbProto {
 	des.encryptText(user,user,DH.longToBytes(key));
 	des.encryptText(passwd,passwd,DH.longToBytes(key));
 	
-	executeOutputStreamOnRunnable(user);
-	executeOutputStreamOnRunnable(passwd);
+	queueOutput(user);
+	queueOutput(passwd);
 	
 	readSecurityResult("VNC authentication");
   }
@@ -726,7 +725,7 @@ class RfbProto {
     writeIntBuffer[1] = (byte) ((value >> 16) & 0xff);
     writeIntBuffer[2] = (byte) ((value >> 8) & 0xff);
     writeIntBuffer[3] = (byte) (value & 0xff);
-    executeOutputStreamOnRunnable(writeIntBuffer);
+    queueOutput(writeIntBuffer);
   }
 
   //
@@ -735,13 +734,13 @@ class RfbProto {
 
   void writeClientInit() throws IOException {
     /*- if (viewer.options.shareDesktop) {
-      executeOutputStreamOnRunnable(1);
+      queueOutput(1);
     } else {
-      executeOutputStreamOnRunnable(0);
+      queueOutput(0);
     }
     viewer.options.disableShareDesktop();
     */
-	  executeOutputStreamOnRunnable(0);
+	  queueOutput(0);
   }
 
 
@@ -978,6 +977,55 @@ class RfbProto {
   }
 
 
+  //
+  // Read the screen layout of an ExtendedDesktopSize update
+  //
+
+  boolean supportsExtendedDesktopSize;
+  // Screens as id, x, y, width, height, flags
+  int screenCount;
+  int[] screenLayout = new int[6];
+
+  void readExtendedDesktopSize() throws IOException {
+    screenCount = is.readUnsignedByte();
+    readFully(extendedDesktopSizeBuf, 0, 3);
+    if (screenLayout.length < screenCount * 6)
+      screenLayout = new int[screenCount * 6];
+    for (int i = 0; i < screenCount; i++) {
+      int o = i * 6;
+      screenLayout[o] = is.readInt();
+      screenLayout[o + 1] = is.readUnsignedShort();
+      screenLayout[o + 2] = is.readUnsignedShort();
+      screenLayout[o + 3] = is.readUnsignedShort();
+      screenLayout[o + 4] = is.readUnsignedShort();
+      screenLayout[o + 5] = is.readInt();
+    }
+    supportsExtendedDesktopSize = true;
+  }
+
+  private byte[] extendedDesktopSizeBuf = new byte[3];
+
+
+  //
+  // Read a Fence message
+  //
+
+  int fenceFlags;
+  int fenceLength;
+  byte[] fenceData = new byte[MaxFenceLength];
+
+  void readFence() throws Exception {
+    readFully(fencePad, 0, 3);
+    fenceFlags = is.readInt();
+    fenceLength = is.readUnsignedByte();
+    if (fenceLength > MaxFenceLength)
+      throw new Exception("Fence payload too large: " + fenceLength);
+    readFully(fenceData, 0, fenceLength);
+  }
+
+  private byte[] fencePad = new byte[3];
+
+
   //
   // Read an integer in compact representation (1..3 bytes).
   // Such format is used as a part of the Tight encoding.
@@ -1029,7 +1077,88 @@ class RfbProto {
     framebufferUpdateRequest[8] = (byte) ((h >> 8) & 0xff);
     framebufferUpdateRequest[9] = (byte) (h & 0xff);
 
-    executeOutputStreamOnRunnable(framebufferUpdateRequest);
+    queueOutput(framebufferUpdateRequest);
+  }
+
+
+  //
+  // Write an EnableContinuousUpdates message
+  //
+
+  synchronized void writeEnableContinuousUpdates(boolean enable, int x, int y, int w, int h)
+       throws IOException
+  {
+    byte[] b = new byte[10];
+
+    b[0] = (byte) EnableContinuousUpdates;
+    b[1] = (byte) (enable ? 1 : 0);
+    b[2] = (byte) ((x >> 8) & 0xff);
+    b[3] = (byte) (x & 0xff);
+    b[4] = (byte) ((y >> 8) & 0xff);
+    b[5] = (byte) (y & 0xff);
+    b[6] = (byte) ((w >> 8) & 0xff);
+    b[7] = (byte) (w & 0xff);
+    b[8] = (byte) ((h >> 8) & 0xff);
+    b[9] = (byte) (h & 0xff);
+
+    queueOutput(b);
+    if (enable)
+      continuousUpdatesActive = true;
+    else
+      continuousUpdatesStopping = true;
+  }
+
+
+  //
+  // Write a SetDesktopSize message asking for a single screen covering the
+  // whole desktop.  The id and flags of the server's first screen are kept.
+  //
+
+  synchronized void writeSetDesktopSize(int width, int height) throws IOException {
+    byte[] b = new byte[24];
+    int id = screenCount > 0 ? screenLayout[0] : 0;
+    int flags = screenCount > 0 ? screenLayout[5] : 0;
+
+    b[0] = (byte) SetDesktopSize;
+    b[2] = (byte) ((width >> 8) & 0xff);
+    b[3] = (byte) (width & 0xff);
+    b[4] = (byte) ((height >> 8) & 0xff);
+    b[5] = (byte) (height & 0xff);
+    b[6] = (byte) 1;
+    b[8] = (byte) ((id >> 24) & 0xff);
+    b[9] = (byte) ((id >> 16) & 0xff);
+    b[10] = (byte) ((id >> 8) & 0xff);
+    b[11] = (byte) (id & 0xff);
+    b[16] = (byte) ((width >> 8) & 0xff);
+    b[17] = (byte) (width & 0xff);
+    b[18] = (byte) ((height >> 8) & 0xff);
+    b[19] = (byte) (height & 0xff);
+    b[20] = (byte) ((flags >> 24) & 0xff);
+    b[21] = (byte) ((flags >> 16) & 0xff);
+    b[22] = (byte) ((flags >> 8) & 0xff);
+    b[23] = (byte) (flags & 0xff);
+
+    queueOutput(b);
+  }
+
+
+  //
+  // Write a Fence message
+  //
+
+  synchronized void writeFence(int flags, int length, byte[] data) throws IOException {
+    byte[] b = new byte[9 + length];
+
+    b[0] = (byte) ClientFence;
+    b[4] = (byte) ((flags >> 24) & 0xff);
+    b[5] = (byte) ((flags >> 16) & 0xff);
+    b[6] = (byte) ((flags >> 8) & 0xff);
+    b[7] = (byte) (flags & 0xff);
+    b[8] = (byte) length;
+
+    System.arraycopy(data, 0, b, 9, length);
+
+    queueOutput(b);
   }
 
 
@@ -1061,7 +1190,7 @@ class RfbProto {
     b[16] = (byte) blueShift;
     b[17] = (byte) (fGreyScale ? 1 : 0); // sf@2005
 
-    executeOutputStreamOnRunnable(b);
+    queueOutput(b);
   }
 
 
@@ -1091,7 +1220,7 @@ class RfbProto {
       b[6 + i * 6 + 5] = (byte) (blue[i] & 0xff);
     }
  
-    executeOutputStreamOnRunnable(b);
+    queueOutput(b);
   }
 
 
@@ -1113,7 +1242,7 @@ class RfbProto {
       b[7 + 4 * i] = (byte) (encs[i] & 0xff);
     }
 
-    executeOutputStreamOnRunnable(b);
+    queueOutput(b);
   }
 
 
@@ -1132,7 +1261,7 @@ class RfbProto {
 
     System.arraycopy(text.getBytes(), 0, b, 8, text.length());
 
-    executeOutputStreamOnRunnable(b);
+    queueOutput(b);
   }
 
 
@@ -1177,7 +1306,11 @@ class RfbProto {
 	      writeModifierKeyEvents(0);
 	    }
 
-        executeOutputStreamOnRunnable(eventBuf, 0, eventBufLen);
+	    // Plain pointer events may be merged with a move still waiting to be sent
+	    if (eventBufLen == 6)
+	      outbound.writePointerEvent(eventBuf, 0);
+	    else
+	      queueOutput(eventBuf, 0, eventBufLen);
   }
   
   void writeCtrlAltDel() throws IOException {
@@ -1188,7 +1321,7 @@ class RfbProto {
       eventBufLen = 0;
       writeModifierKeyEvents(CTRLALT);
       writeKeyEvent(DELETE, true);
-      executeOutputStreamOnRunnable(eventBuf, 0, eventBufLen);
+      queueOutput(eventBuf, 0, eventBufLen);
 
       // Release
       eventBufLen = 0;
@@ -1197,7 +1330,7 @@ class RfbProto {
 
       // Reset VNC server modifiers state
       writeModifierKeyEvents(0);
-      executeOutputStreamOnRunnable(eventBuf, 0, eventBufLen);
+      queueOutput(eventBuf, 0, eventBufLen);
   }
     
   //
@@ -1216,7 +1349,7 @@ class RfbProto {
     if (!down)
       writeModifierKeyEvents(0);
 
-    executeOutputStreamOnRunnable(eventBuf, 0, eventBufLen);
+    queueOutput(eventBuf, 0, eventBufLen);
   }
   
   
@@ -1270,6 +1403,7 @@ class RfbProto {
 
   public void startTiming() {
     timing = true;
+    readAhead.timing = true;
 
     // Carry over up to 1s worth of previous rate for smoothing.
 
@@ -1281,6 +1415,26 @@ class RfbProto {
 
   public void stopTiming() {
     timing = false; 
+    readAhead.timing = false;
+
+    // The reader thread receives ahead of the decoder, so only the time it
+    // spent receiving says how fast the link is.
+    readAhead.getTransfer(transfer);
+    long newTimeWaited = (transfer[0] - countedTransferNanos) / 100000;
+    long newKbits = (transfer[1] - countedTransferBytes) * 8 / 1000;
+    if (newKbits > 0) {
+      countedTransferNanos = transfer[0];
+      countedTransferBytes = transfer[1];
+
+      // limit rate to between 10kbit/s and 40Mbit/s
+
+      if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
+      if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
+
+      timeWaitedIn100us += newTimeWaited;
+      timedKbits += newKbits;
+    }
+
     if (timeWaitedIn100us < timedKbits/2)
       timeWaitedIn100us = timedKbits/2; // upper limit 20Mbit/s
   }
@@ -1299,49 +1453,38 @@ class RfbProto {
 
   public void readFully(byte b[], int off, int len) throws IOException {
     long before = 0;
-    timing = false; // for test
-    
+
     if (timing)
-      before = System.currentTimeMillis();
+      before = System.nanoTime();
 
     is.readFully(b, off, len);
 
-    if (timing) {
-      long after = System.currentTimeMillis();
-      long newTimeWaited = (after - before) * 10;
-      int newKbits = len * 8 / 1000;
-
-      // limit rate to between 10kbit/s and 40Mbit/s
-
-      if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
-      if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
-
-      timeWaitedIn100us += newTimeWaited;
-      timedKbits += newKbits;
-    }
+    // Time the decoder was held up by the network
+    if (timing)
+      readWaitNanos += System.nanoTime() - before;
   }
 
     synchronized void writeOpenChat() throws Exception {
-		executeOutputStreamOnRunnable(TextChat); // byte type
-		executeOutputStreamOnRunnable(0); // byte pad 1
-		executeOutputStreamOnRunnable(0); // byte pad 2
-		executeOutputStreamOnRunnable(0); // byte pad 2
+		queueOutput(TextChat); // byte type
+		queueOutput(0); // byte pad 1
+		queueOutput(0); // byte pad 2
+		queueOutput(0); // byte pad 2
 		writeInt(CHAT_OPEN); // int message length
 	}
 
     synchronized void writeCloseChat() throws Exception {
-		executeOutputStreamOnRunnable(TextChat); // byte type
-		executeOutputStreamOnRunnable(0); // byte pad 1
-		executeOutputStreamOnRunnable(0); // byte pad 2
-		executeOutputStreamOnRunnable(0); // byte pad 2
+		queueOutput(TextChat); // byte type
+		queueOutput(0); // byte pad 1
+		queueOutput(0); // byte pad 2
+		queueOutput(0); // byte pad 2
 		writeInt(CHAT_CLOSE); // int message length
 	}
 
     synchronized void writeFinishedChat() throws Exception {
-		executeOutputStreamOnRunnable(TextChat); // byte type
-		executeOutputStreamOnRunnable(0); // byte pad 1
-		executeOutputStreamOnRunnable(0); // byte pad 2
-		executeOutputStreamOnRunnable(0); // byte pad 2
+		queueOutput(TextChat); // byte type
+		queueOutput(0); // byte pad 1
+		queueOutput(0); // byte pad 2
+		queueOutput(0); // byte pad 2
 		writeInt(CHAT_FINISHED); // int message length
 	}
 
@@ -1375,10 +1518,10 @@ class RfbProto {
 	}
 
 	public synchronized void writeChatMessage(String msg) throws Exception {
-		executeOutputStreamOnRunnable(TextChat); // byte type
-		executeOutputStreamOnRunnable(0); // byte pad 1
-		executeOutputStreamOnRunnable(0); // byte pad 2
-		executeOutputStreamOnRunnable(0); // byte pad 2
+		queueOutput(TextChat); // byte type
+		queueOutput(0); // byte pad 1
+		queueOutput(0); // byte pad 2
+		queueOutput(0); // byte pad 2
 		byte [] bytes = msg.getBytes("8859_1");
 		byte [] outgoing = bytes;
 		if (bytes.length > 4096) {
@@ -1386,6 +1529,6 @@ class RfbProto {
 			System.arraycopy(bytes, 0, outgoing, 0, 4096);
 		}
 		writeInt(outgoing.length); // int message length
-		executeOutputStreamOnRunnable(outgoing); // message
+		queueOutput(outgoing); // message
 	}
 }
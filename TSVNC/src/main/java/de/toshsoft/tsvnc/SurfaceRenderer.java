@@ -0,0 +1,253 @@
+package de.toshsoft.tsvnc;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.widget.ImageView;
+
+/**
+ * Shows the framebuffer on a SurfaceView, drawn on a thread of its own instead of the UI thread.
+ * <p>
+ * Frames are marked dirty and counted like with a FramePacer, but the render thread presents
+ * them: it locks only the damaged part of the surface and draws the bitmap data's drawable
+ * there, with the scale and pan of the VncCanvas.  Posting the surface waits for the display,
+ * which paces the render thread.  The VncCanvas stays on top of the surface to handle touch,
+ * keys and layout; it draws nothing and only passes on its transform with
+ * {@link #setTransform}.
+ */
+class SurfaceRenderer extends FramePacer implements SurfaceHolder.Callback, Runnable
+{
+	private final static String TAG = "SurfaceRenderer";
+
+	private final VncCanvas vncCanvas;
+	private final SurfaceHolder holder;
+
+	/**
+	 * Held while drawing; hold it to dispose of bitmap data the render thread may be using
+	 */
+	final Object drawLock = new Object();
+
+	// Guarded by this
+	private Thread thread;
+	private boolean requested;
+	private boolean redrawAll;
+	private final Matrix transform = new Matrix();
+	private final Matrix newTransform = new Matrix();
+	// Read from the VncCanvas for the drawable, which must not touch the view here
+	private ImageView.ScaleType scaleType;
+	private int visibleWidth;
+	private int visibleHeight;
+
+	// Only used in the render thread
+	private final Matrix drawTransform = new Matrix();
+	private ImageView.ScaleType drawScaleType;
+	private int drawVisibleWidth;
+	private int drawVisibleHeight;
+	private final Rect dirty = new Rect();
+	private AbstractBitmapData shownData;
+
+	/**
+	 * Create in the UI thread
+	 * @param handler Handler of the UI thread
+	 * @param present Run in the UI thread when there is new bitmap data, to set up the VncCanvas
+	 * @param c VncCanvas in front of the surface
+	 * @param view Surface to draw on
+	 * @param atUpdateBoundaries True to present only completed FramebufferUpdates
+	 */
+	SurfaceRenderer(Handler handler, Runnable present, VncCanvas c, SurfaceView view, boolean atUpdateBoundaries)
+	{
+		super(handler, present, atUpdateBoundaries);
+		vncCanvas = c;
+		holder = view.getHolder();
+		holder.addCallback(this);
+		view.setVisibility(View.VISIBLE);
+	}
+
+	/**
+	 * Call in the UI thread when the scale or pan of the VncCanvas may have changed
+	 * @param imageMatrix Image matrix of the VncCanvas
+	 * @param dx Horizontal scroll position less left padding
+	 * @param dy Vertical scroll position less top padding
+	 * @param scaleType Scale type of the VncCanvas
+	 * @param visibleWidth Visible width of the VncCanvas, in framebuffer pixels
+	 * @param visibleHeight Visible height of the VncCanvas, in framebuffer pixels
+	 */
+	synchronized void setTransform(Matrix imageMatrix, int dx, int dy, ImageView.ScaleType scaleType, int visibleWidth, int visibleHeight)
+	{
+		newTransform.set(imageMatrix);
+		newTransform.postTranslate(-dx, -dy);
+		if (newTransform.equals(transform) && scaleType == this.scaleType
+				&& visibleWidth == this.visibleWidth && visibleHeight == this.visibleHeight)
+			return;
+		transform.set(newTransform);
+		this.scaleType = scaleType;
+		this.visibleWidth = visibleWidth;
+		this.visibleHeight = visibleHeight;
+		redrawAll = true;
+		requested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Draw the damage without waiting for a decoded frame, like for a moved local cursor
+	 */
+	synchronized void redraw()
+	{
+		requested = true;
+		notifyAll();
+	}
+
+	/* (non-Javadoc)
+	 * @see de.toshsoft.tsvnc.FramePacer#requestFrame()
+	 */
+	@Override
+	void requestFrame()
+	{
+		redraw();
+	}
+
+	/* (non-Javadoc)
+	 * @see android.view.SurfaceHolder.Callback#surfaceCreated(android.view.SurfaceHolder)
+	 */
+	@Override
+	public synchronized void surfaceCreated(SurfaceHolder holder)
+	{
+		redrawAll = true;
+		requested = true;
+		thread = new Thread(this, "RfbRenderer");
+		thread.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see android.view.SurfaceHolder.Callback#surfaceChanged(android.view.SurfaceHolder, int, int, int)
+	 */
+	@Override
+	public synchronized void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
+	{
+		redrawAll = true;
+		requested = true;
+		notifyAll();
+	}
+
+	/* (non-Javadoc)
+	 * @see android.view.SurfaceHolder.Callback#surfaceDestroyed(android.view.SurfaceHolder)
+	 */
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder)
+	{
+		Thread t;
+		synchronized (this)
+		{
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		// The surface must not be drawn on once this returns
+		boolean interrupted = false;
+		while (t != null && t.isAlive())
+		{
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException ie)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				boolean all;
+				synchronized (this)
+				{
+					while (! requested && thread == Thread.currentThread())
+						wait();
+					if (thread != Thread.currentThread())
+						return;
+					requested = false;
+					all = redrawAll;
+					redrawAll = false;
+					drawTransform.set(transform);
+					drawScaleType = scaleType;
+					drawVisibleWidth = visibleWidth;
+					drawVisibleHeight = visibleHeight;
+				}
+				// Counts the frame if one was decoded; the damage is drawn either way
+				beginFrame();
+				synchronized (drawLock)
+				{
+					render(all);
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			// Shutting down
+		}
+	}
+
+	private void render(boolean all)
+	{
+		AbstractBitmapData data = vncCanvas.bitmapData;
+		if (data == null)
+			return;
+		if (data != shownData)
+		{
+			// The VncCanvas lays out and scales with the drawable of the new data
+			shownData = data;
+			handler.post(present);
+			all = true;
+		}
+		Canvas canvas;
+		if (all)
+		{
+			data.takeDamage(drawTransform, dirty);
+			canvas = holder.lockCanvas();
+		}
+		else
+		{
+			if (! data.takeDamage(drawTransform, dirty))
+				return;
+			canvas = holder.lockCanvas(dirty);
+		}
+		if (canvas == null)
+		{
+			// The damage is taken already; draw it all once the surface can be locked
+			Log.w(TAG, "Surface could not be locked");
+			synchronized (this)
+			{
+				redrawAll = true;
+			}
+			return;
+		}
+		try
+		{
+			// Beside the framebuffer, like when it is scaled to fit
+			canvas.drawColor(Color.BLACK);
+			canvas.concat(drawTransform);
+			data.getDrawable().draw(canvas, drawScaleType, drawVisibleWidth, drawVisibleHeight);
+		}
+		finally
+		{
+			holder.unlockCanvasAndPost(canvas);
+		}
+	}
+}
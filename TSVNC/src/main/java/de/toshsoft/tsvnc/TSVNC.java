@@ -52,6 +52,7 @@ public class TSVNC extends Activity {
 	private CheckBox checkboxKeepPassword;
 	private CheckBox checkboxUseOverlay;
 	private CheckBox checkboxAutomaticLogin;
+	private CheckBox checkboxFitRemoteToDevice;
 	private AutoCompleteTextView editTextFilledExposedDropdown;
 
 	@Override
@@ -76,6 +77,7 @@ public class TSVNC extends Activity {
 		checkboxKeepPassword = (CheckBox)promptsView.findViewById(R.id.checkboxKeepPassword);
 		checkboxUseOverlay = (CheckBox)promptsView.findViewById(R.id.checkboxUseOverlay);
 		checkboxAutomaticLogin = (CheckBox)promptsView.findViewById(R.id.checkboxAutomaticLogin);
+		checkboxFitRemoteToDevice = (CheckBox)promptsView.findViewById(R.id.checkboxFitRemoteToDevice);
 
 		editTextFilledExposedDropdown =
 				promptsView.findViewById(R.id.filled_exposed_dropdown);
@@ -160,6 +162,7 @@ public class TSVNC extends Activity {
 		checkboxKeepPassword.setChecked(settings.getKeepPassword());
 		checkboxUseOverlay.setChecked(settings.getMenuOverlay());
 		checkboxAutomaticLogin.setChecked(settings.getAutomaticLogin());
+		checkboxFitRemoteToDevice.setChecked(settings.getFitRemoteToDevice());
 		textUsername.setText(settings.getUserName());
 
 		editTextFilledExposedDropdown.setText(COLORMODEL.getModelForId(settings.getColorModel()).toString(), false);
@@ -185,6 +188,7 @@ public class TSVNC extends Activity {
 		settings.setKeepPassword(checkboxKeepPassword.isChecked());
 		settings.setMenuOverlay(checkboxUseOverlay.isChecked());
 		settings.setAutomaticLogin(checkboxAutomaticLogin.isChecked());
+		settings.setFitRemoteToDevice(checkboxFitRemoteToDevice.isChecked());
 		// selected.setUseLocalCursor(checkboxLocalCursor.isChecked());
 		settings.setColorModel(COLORMODEL.getModelForDesc(editTextFilledExposedDropdown.getText().toString()).getId());
 		//selected.setUseWakeLock(checkboxWakeLock.isChecked());
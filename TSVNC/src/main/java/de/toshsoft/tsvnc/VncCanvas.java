@@ -32,23 +32,28 @@ package de.toshsoft.tsvnc;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 
 import com.antlersoft.android.bc.BCFactory;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.Inflater;
 
 
@@ -84,6 +89,9 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 
 	// Color Model settings
 	private COLORMODEL pendingColorModel = COLORMODEL.C24bit;
+	// Requests were sent ahead at the last update header
+	private boolean pipelineRunning;
+
 	private COLORMODEL colorModel = null;
 	private int bytesPerPixel = 0;
 	private int[] colorPalette = null;
@@ -98,21 +106,30 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	// Internal bitmap data
 	AbstractBitmapData bitmapData;
 	public Handler handler = new Handler();
+	// Shows decoded frames at most once per vsync
+	private FramePacer framePacer;
+	// Draws the frames on a surface behind this view instead, or null
+	SurfaceRenderer surfaceRenderer;
+	private SurfaceView surfaceView;
 
 	// VNC Encoding parameters
-	private boolean useCopyRect = false; // TODO CopyRect is not working
+	private boolean useCopyRect = true;
 	private int preferredEncoding = -1;
 
-	// Unimplemented VNC encoding parameters
+	// Cursor shape updates, drawn locally when the server supports them
 	private boolean requestCursorUpdates = false;
-	private boolean ignoreCursorUpdates = true;
+	private boolean ignoreCursorUpdates = false;
+	volatile RemoteCursor remoteCursor;
 
-	// Unimplemented TIGHT encoding parameters
+	// TIGHT encoding parameters
 	private int compressLevel = -1;
 	private int jpegQuality = -1;
 
+	// Picks the encoding parameters above from measured throughput and decode cost
+	private AdaptiveEncodingController adaptiveEncoding;
+
 	// Used to determine if encoding update is necessary
-	private int[] encodingsSaved = new int[20];
+	private int[] encodingsSaved = new int[32];
 	private int nEncodingsSaved = 0;
 
 	// ZRLE encoder's data.
@@ -120,12 +137,28 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	private int[] zrleTilePixels;
 	private ZlibInStream zrleInStream;
 
+	// Decodes rects without decoder state on other cores, or null
+	private ParallelRectDecoder parallelDecoder;
+	private RfbInStream trleInStream;
+	private RfbInStream hextileInStream;
+	// Compressed ZRLE and Zlib payloads, straight from the socket
+	private RfbInStream payloadInStream;
+	// TRLE tiles can reuse the palette of the previous tile
+	private int trlePalSize;
+
 	// Zlib encoder's data.
-	private byte[] zlibBuf;
-	private Inflater zlibInflater;
+	private ZlibInStream zlibInStream;
+
+	// Tight encoder's data.
+	private Inflater[] tightInflaters = new Inflater[4];
+	private byte[] tightBuf;
+	private byte[] tightZlibBuf;
+	private byte[] tightPaletteBuf = new byte[256 * 3];
+	private int[] tightPalette = new int[256];
+	private int[] tightPrevRow;
+	private int[] tightThisRow;
 	private MouseScrollRunnable scrollRunnable;
 	
-	private Paint handleRREPaint;
 	
 	/**
 	 * Position of the top left portion of the <i>visible</i> part of the screen, in
@@ -141,8 +174,15 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	{
 		super(context, attrs);
 		scrollRunnable = new MouseScrollRunnable();
-		handleRREPaint = new Paint();
-		handleRREPaint.setStyle(Style.FILL);
+	}
+
+	/**
+	 * Show frames on a surface, drawn from a thread of its own; call before
+	 * initializeVncCanvas.  This view then only handles input and layout.
+	 * @param view Surface with the same position and size as this view, behind it
+	 */
+	void setSurfaceView(SurfaceView view) {
+		surfaceView = view;
 	}
 
 	/**
@@ -160,6 +200,11 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			wakeLock = ((PowerManager)getContext().getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "android.androidVNC");
 		}
 		this.pendingColorModel = COLORMODEL.getModelForId(settings.getColorModel());
+		this.requestCursorUpdates = settings.getUseLocalCursor();
+		if (surfaceView != null)
+			this.framePacer = this.surfaceRenderer = new SurfaceRenderer(handler, reDraw, this, surfaceView, settings.getPresentAtUpdateBoundaries());
+		else
+			this.framePacer = new FramePacer(handler, reDraw, settings.getPresentAtUpdateBoundaries());
 
 		// Startup the RFB thread with a nifty progess dialog
 		final ProgressDialog pd = ProgressDialog.show(getContext(), "Connecting...", "Establishing handshake.\nPlease wait...", true, true, new DialogInterface.OnCancelListener() {
@@ -234,6 +279,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		Log.i(TAG, "Connecting to " + settings.getAddress() + ", port " + settings.getPort() + "...");
 
 		rfb = new RfbProto(settings.getAddress(), settings.getPort());
+		rfb.setTcpNoDelay(settings.getTcpNoDelay());
 		if (LOCAL_LOGV) Log.v(TAG, "Connected to server");
 
 		rfb.readVersionMsg();
@@ -283,6 +329,21 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		Log.i(TAG, "Desktop name is " + rfb.desktopName);
 		Log.i(TAG, "Desktop size is " + rfb.framebufferWidth + " x " + rfb.framebufferHeight);
 
+		bitmapData=createBitmapData(dx, dy, null);
+		mouseX=rfb.framebufferWidth/2;
+		mouseY=rfb.framebufferHeight/2;
+
+		setPixelFormat();
+	}
+
+	/**
+	 * Create the bitmap data for the current framebuffer size, choosing the implementation
+	 * that fits in the memory budget
+	 * @param dx Display width
+	 * @param dy Display height
+	 * @param old Bitmap data being replaced, whose pixel array may be reused; or null
+	 */
+	private AbstractBitmapData createBitmapData(int dx, int dy, AbstractBitmapData old) {
 		boolean useFull = false;
 		int capacity = BCFactory.getInstance().getBCActivityManager().getMemoryClass(Utils.getActivityManager(getContext()));
 		if (settings.getForceFull() == BitmapImplHint.AUTO)
@@ -293,13 +354,56 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		else
 			useFull = (settings.getForceFull() == BitmapImplHint.FULL);
 		if (! useFull)
-			bitmapData=new LargeBitmapData(rfb,this,dx,dy,capacity);
-		else
-			bitmapData=new FullBufferBitmapData(rfb,this, capacity);
-		mouseX=rfb.framebufferWidth/2;
-		mouseY=rfb.framebufferHeight/2;
+			return new LargeBitmapData(rfb,this,dx,dy,capacity);
+		int[] reuse = old instanceof FullBufferBitmapData ? old.bitmapPixels : null;
+		// A second pixel array only if it still fits comfortably
+		boolean doubleBuffered = settings.getDoubleBufferFramebuffer()
+				&& (long)rfb.framebufferWidth * rfb.framebufferHeight * FullBufferBitmapData.DOUBLE_BUFFER_CAPACITY_MULTIPLIER <= (long)capacity * 1024 * 1024;
+		return new FullBufferBitmapData(rfb,this, capacity, reuse, doubleBuffered);
+	}
 
-		setPixelFormat();
+	/**
+	 * Ask the server to resize its desktop to the display of this device, so
+	 * frames need no scaling.  Only done once the server has shown it supports it.
+	 */
+	private void requestDeviceDesktopSize() throws IOException {
+		if (! settings.getFitRemoteToDevice())
+			return;
+		int w = (int)displayWidth;
+		int h = (int)displayHeight;
+		if (w > 0 && h > 0 && (w != rfb.framebufferWidth || h != rfb.framebufferHeight)) {
+			Log.i(TAG, "Requesting desktop size " + w + " x " + h);
+			rfb.writeSetDesktopSize(w, h);
+		}
+	}
+
+	/**
+	 * The server changed the framebuffer size; replace the bitmap data to match without
+	 * reconnecting.  Called in the protocol thread, the caller asks for a full update.
+	 */
+	private void updateFramebufferSize() throws IOException {
+		final AbstractBitmapData oldData = bitmapData;
+		Log.i(TAG, "Desktop size is now " + rfb.framebufferWidth + " x " + rfb.framebufferHeight);
+
+		bitmapData = createBitmapData((int)displayWidth, (int)displayHeight, oldData);
+		if (mouseX >= rfb.framebufferWidth)
+			mouseX = rfb.framebufferWidth - 1;
+		if (mouseY >= rfb.framebufferHeight)
+			mouseY = rfb.framebufferHeight - 1;
+		if (rfb.continuousUpdatesActive && ! rfb.continuousUpdatesStopping)
+			bitmapData.writeEnableContinuousUpdates();
+
+		handler.post(new Runnable() {
+			public void run() {
+				if (scaling != null)
+					scaling.framebufferSizeChanged(VncCanvas.this);
+				absoluteXPosition = absoluteYPosition = 0;
+				scrollTo(0, 0);
+				bitmapData.updateView(VncCanvas.this);
+				// The old data is no longer shown once the new drawable is set
+				disposeBitmapData(oldData);
+			}
+		});
 	}
 
 	private void setPixelFormat() throws IOException {
@@ -310,6 +414,32 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		pendingColorModel = null;
 	}
 
+	/**
+	 * True if update requests should be sent as soon as an update header arrives
+	 * instead of after the update has been decoded
+	 */
+	private boolean isPipeliningUpdates() {
+		return settings.getUpdateRequestPipelineDepth() > 0 && ! rfb.continuousUpdatesActive && pendingColorModel == null;
+	}
+
+	/**
+	 * Call for every update header while pipelining.  When pipelining starts, the
+	 * configured number of incremental update requests is sent ahead; after that one
+	 * for each update, so the server always has a request to answer.  Requests in flight
+	 * are not counted: servers may answer several queued requests with one update, so
+	 * a count would only grow until nothing is requested any more.
+	 * <p>
+	 * Once pipelining stops, only one more update is waited for before a pixel format
+	 * change; with depths above 1, a server that queues requests may still answer the
+	 * ones sent ahead in the old format.
+	 */
+	private void requestPipelinedUpdates() throws IOException {
+		int n = pipelineRunning ? 1 : settings.getUpdateRequestPipelineDepth();
+		pipelineRunning = true;
+		for (int i = 0; i < n; i++)
+			bitmapData.writeFullUpdateRequest(true);
+	}
+
 	public void setColorModel(COLORMODEL cm) {
 		// Only update if color model changes
 		if (colorModel == null || !colorModel.equals(cm))
@@ -342,6 +472,9 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			wakeLock.acquire();
 		}
 		try {
+			adaptiveEncoding = new AdaptiveEncodingController(rfb, settings.getTrleMinKbitsPerSecond(), settings.getAllowLossyEncoding());
+			if (settings.getParallelRectDecode() && Runtime.getRuntime().availableProcessors() > 1)
+				parallelDecoder = new ParallelRectDecoder();
 			bitmapData.writeFullUpdateRequest(false);
 
 			handler.post(setModes);
@@ -358,6 +491,15 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 				case RfbProto.FramebufferUpdate:
 					rfb.readFramebufferUpdate();
 
+					// Ask for the next update before decoding this one, so the server
+					// encodes and sends it while we are still busy here
+					boolean pipelined = isPipeliningUpdates();
+					if (pipelined)
+						requestPipelinedUpdates();
+					else
+						pipelineRunning = false;
+					boolean resized = false;
+
 					for (int i = 0; i < rfb.updateNRects; i++) {
 						rfb.readFramebufferUpdateRectHdr();
 						int rx = rfb.updateRectX, ry = rfb.updateRectY;
@@ -368,39 +510,67 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 							break;
 						}
 
+						// Anything the pool cannot decode waits for it, so rects are
+						// still applied in order
+						boolean parallel = parallelDecoder != null && bitmapData.pixelsCoverFramebuffer()
+								&& ParallelRectDecoder.canDecode(rfb.updateRectEncoding, rw, rh);
+						if (! parallel)
+							finishParallelDecode();
+
+						// Rects after a size change already use the new size
 						if (rfb.updateRectEncoding == RfbProto.EncodingNewFBSize) {
-							rfb.setFramebufferSize(rw, rh);
-							// - updateFramebufferSize();
-							Log.v(TAG, "rfb.EncodingNewFBSize");
-							break;
+							if (rw != rfb.framebufferWidth || rh != rfb.framebufferHeight) {
+								rfb.setFramebufferSize(rw, rh);
+								updateFramebufferSize();
+								resized = true;
+							}
+							continue;
 						}
 
-						if (rfb.updateRectEncoding == RfbProto.EncodingXCursor || rfb.updateRectEncoding == RfbProto.EncodingRichCursor) {
-							// - handleCursorShapeUpdate(rfb.updateRectEncoding,
-							// rx,
-							// ry, rw, rh);
-							Log.v(TAG, "rfb.EncodingCursor");
+						if (rfb.updateRectEncoding == RfbProto.EncodingExtendedDesktopSize) {
+							boolean firstLayout = ! rfb.supportsExtendedDesktopSize;
+							rfb.readExtendedDesktopSize();
+							if (firstLayout)
+								requestDeviceDesktopSize();
+							// x is the reason, y the result of a request by this client
+							if (rx == RfbProto.DesktopSizeReasonClient && ry != RfbProto.DesktopSizeStatusOk)
+								Log.w(TAG, "Desktop size change refused by server, status " + ry);
+							else if (rw != rfb.framebufferWidth || rh != rfb.framebufferHeight) {
+								rfb.setFramebufferSize(rw, rh);
+								updateFramebufferSize();
+								resized = true;
+							}
 							continue;
+						}
 
+						if (rfb.updateRectEncoding == RfbProto.EncodingXCursor || rfb.updateRectEncoding == RfbProto.EncodingRichCursor) {
+							handleCursorShapeUpdate(rfb.updateRectEncoding, rx, ry, rw, rh);
+							continue;
 						}
 
 						if (rfb.updateRectEncoding == RfbProto.EncodingPointerPos) {
-							// This never actually happens
+							// Pointer moved by someone else on the server
+							bitmapData.addCursorDamage();
 							mouseX=rx;
 							mouseY=ry;
-							Log.v(TAG, "rfb.EncodingPointerPos");
+							bitmapData.addCursorDamage();
+							reDraw();
 							continue;
 						}
 
 						rfb.startTiming();
+						long decodeStart = System.nanoTime();
+						long waitStart = rfb.readWaitNanos;
 
-						switch (rfb.updateRectEncoding) {
+						if (parallel)
+							parallelDecoder.submit(rfb, rfb.updateRectEncoding, rx, ry, rw, rh, bytesPerPixel, colorPalette,
+									bitmapData.bitmapPixels, bitmapData.framebufferwidth);
+						else switch (rfb.updateRectEncoding) {
 						case RfbProto.EncodingRaw:
 							handleRawRect(rx, ry, rw, rh);
 							break;
 						case RfbProto.EncodingCopyRect:
 							handleCopyRect(rx, ry, rw, rh);
-							Log.v(TAG, "CopyRect is Buggy!");
 							break;
 						case RfbProto.EncodingRRE:
 							handleRRERect(rx, ry, rw, rh);
@@ -414,30 +584,95 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 						case RfbProto.EncodingZRLE:
 							handleZRLERect(rx, ry, rw, rh);
 							break;
+						case RfbProto.EncodingTRLE:
+							handleTRLERect(rx, ry, rw, rh);
+							break;
 						case RfbProto.EncodingZlib:
 							handleZlibRect(rx, ry, rw, rh);
 							break;
+						case RfbProto.EncodingUltra:
+							handleUltraRect(rx, ry, rw, rh);
+							break;
+						case RfbProto.EncodingTight:
+							handleTightRect(rx, ry, rw, rh);
+							break;
 						default:
 							Log.e(TAG, "Unknown RFB rectangle encoding " + rfb.updateRectEncoding + " (0x" + Integer.toHexString(rfb.updateRectEncoding) + ")");
 						}
 
 						rfb.stopTiming();
+						long waited = rfb.readWaitNanos - waitStart;
+						// A parallel rect was only read; finish() reports its decoding
+						adaptiveEncoding.recordDecode(rfb.updateRectEncoding, parallel ? 0 : rw * rh, System.nanoTime() - decodeStart - waited, waited);
 
 						// Hide progress dialog
 						if (pd.isShowing())
 							pd.dismiss();
 					}
 
-					boolean fullUpdateNeeded = false;
+					// Barrier before the update is published
+					finishParallelDecode();
+					bitmapData.publish();
+					if (repaintsEnabled)
+						framePacer.updateComplete();
+
+					boolean fullUpdateNeeded = resized;
 
+					// The new pixel format may only be sent once no update in the
+					// old format can arrive any more: no request went out since the
+					// one this update answered
 					if (pendingColorModel != null) {
-						setPixelFormat();
-						fullUpdateNeeded = true;
+						if (rfb.continuousUpdatesActive) {
+							if (! rfb.continuousUpdatesStopping)
+								rfb.writeEnableContinuousUpdates(false, 0, 0, rfb.framebufferWidth, rfb.framebufferHeight);
+						} else if (! pipelined) {
+							setPixelFormat();
+							fullUpdateNeeded = true;
+						}
 					}
 
 					setEncodings(true);
-					bitmapData.writeFullUpdateRequest(!fullUpdateNeeded);
+					// With continuous updates the server streams on its own and in
+					// pipelined mode the next request already went out; only a full
+					// refresh still has to be asked for
+					if (fullUpdateNeeded || (! pipelined && pendingColorModel == null && ! rfb.continuousUpdatesActive)) {
+						bitmapData.writeFullUpdateRequest(!fullUpdateNeeded);
+					}
+
+					break;
+
+				case RfbProto.EndOfContinuousUpdates:
+					if (! rfb.supportsContinuousUpdates) {
+						// The first one only announces that the server supports them
+						rfb.supportsContinuousUpdates = true;
+						if (settings.getUseContinuousUpdates()) {
+							Log.i(TAG, "Server supports continuous updates, enabling them");
+							bitmapData.writeEnableContinuousUpdates();
+						}
+					} else if (rfb.continuousUpdatesStopping) {
+						// Nothing in the old pixel format follows; switch and restart
+						rfb.continuousUpdatesStopping = false;
+						rfb.continuousUpdatesActive = false;
+						if (pendingColorModel != null)
+							setPixelFormat();
+						bitmapData.writeFullUpdateRequest(false);
+						bitmapData.writeEnableContinuousUpdates();
+					} else if (rfb.continuousUpdatesActive) {
+						// The server stopped streaming; go back to requesting updates
+						Log.i(TAG, "Continuous updates ended by server");
+						rfb.continuousUpdatesActive = false;
+						bitmapData.writeFullUpdateRequest(true);
+					}
+					break;
 
+				case RfbProto.ServerFence:
+					rfb.readFence();
+					if ((rfb.fenceFlags & RfbProto.FenceFlagRequest) != 0) {
+						// Messages are handled strictly in order on this thread, so
+						// every synchronisation flag is already satisfied; echo it back
+						rfb.writeFence(rfb.fenceFlags & RfbProto.FenceFlagsSupported & ~RfbProto.FenceFlagRequest,
+								rfb.fenceLength, rfb.fenceData);
+					}
 					break;
 
 				case RfbProto.SetColourMapEntries:
@@ -472,7 +707,10 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			throw e;
 		} finally {
 			Log.v(TAG, "Closing VNC Connection");
+			Log.i(TAG, "Frames presented: " + framePacer.getPresentedFrames() + ", dropped: " + framePacer.getDroppedFrames());
 			rfb.close();
+			if (parallelDecoder != null)
+				parallelDecoder.close();
 			if (wakeLock != null && wakeLock.isHeld()) {
 				wakeLock.release();
 			}
@@ -516,7 +754,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 
 	public void onDestroy() {
 		Log.v(TAG, "Cleaning up resources");
-		if ( bitmapData!=null) bitmapData.dispose();
+		if ( bitmapData!=null) disposeBitmapData(bitmapData);
 		bitmapData = null;
 	}
 	
@@ -676,6 +914,73 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		mouseFollowPan();
 	}
 
+	//
+	// Handle cursor shape updates (XCursor and RichCursor encodings).
+	//
+	byte[] handleCursorBuf = new byte[128];
+	int[] handleCursorPixels = new int[32];
+	void handleCursorShapeUpdate(int encoding, int xhot, int yhot, int w, int h) throws IOException {
+		if (w * h == 0) {
+			bitmapData.addCursorDamage();
+			remoteCursor = new RemoteCursor(null, 0, 0, 0, 0);
+			reDraw();
+			return;
+		}
+
+		int bytesPerRow = (w + 7) / 8;
+		int bytesMaskData = bytesPerRow * h;
+		if (handleCursorPixels.length < w * h)
+			handleCursorPixels = new int[w * h];
+		int[] pixels = handleCursorPixels;
+
+		if (encoding == RfbProto.EncodingXCursor) {
+			// Two colours, then a bitmap selecting one of them
+			rfb.readFully(handleCursorBuf, 0, 6);
+			int fg = 0xff000000 | (handleCursorBuf[0] & 0xff) << 16 | (handleCursorBuf[1] & 0xff) << 8 | (handleCursorBuf[2] & 0xff);
+			int bg = 0xff000000 | (handleCursorBuf[3] & 0xff) << 16 | (handleCursorBuf[4] & 0xff) << 8 | (handleCursorBuf[5] & 0xff);
+			if (handleCursorBuf.length < bytesMaskData)
+				handleCursorBuf = new byte[bytesMaskData];
+			rfb.readFully(handleCursorBuf, 0, bytesMaskData);
+			for (int dy = 0; dy < h; dy++) {
+				for (int dx = 0; dx < w; dx++) {
+					boolean set = (handleCursorBuf[dy * bytesPerRow + dx / 8] & (0x80 >> (dx & 7))) != 0;
+					pixels[dy * w + dx] = set ? fg : bg;
+				}
+			}
+		} else {
+			// Pixels in the current pixel format
+			int l = w * h * bytesPerPixel;
+			if (handleCursorBuf.length < l)
+				handleCursorBuf = new byte[l];
+			rfb.readFully(handleCursorBuf, 0, l);
+			if (bytesPerPixel == 1) {
+				for (int i = 0; i < w * h; i++)
+					pixels[i] = 0xff000000 | colorPalette[0xFF & handleCursorBuf[i]];
+			} else {
+				for (int i = 0; i < w * h; i++) {
+					final int idx = i*4;
+					pixels[i] = 0xff000000 | (handleCursorBuf[idx + 2] & 0xff) << 16 | (handleCursorBuf[idx + 1] & 0xff) << 8 | (handleCursorBuf[idx] & 0xff);
+				}
+			}
+		}
+
+		// Transparency mask, one bit per pixel
+		if (handleCursorBuf.length < bytesMaskData)
+			handleCursorBuf = new byte[bytesMaskData];
+		rfb.readFully(handleCursorBuf, 0, bytesMaskData);
+		for (int dy = 0; dy < h; dy++) {
+			for (int dx = 0; dx < w; dx++) {
+				if ((handleCursorBuf[dy * bytesPerRow + dx / 8] & (0x80 >> (dx & 7))) == 0)
+					pixels[dy * w + dx] = 0;
+			}
+		}
+
+		bitmapData.addCursorDamage();
+		remoteCursor = new RemoteCursor(pixels, w, h, xhot, yhot);
+		bitmapData.addCursorDamage();
+		reDraw();
+	}
+
 	void handleRawRect(int x, int y, int w, int h) throws IOException {
 		handleRawRect(x, y, w, h, true);
 	}
@@ -729,6 +1034,31 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			reDraw();
 	}
 
+	/**
+	 * Release bitmap data that is not shown any more, once the render thread, if any,
+	 * has stopped drawing it
+	 */
+	private void disposeBitmapData(AbstractBitmapData data) {
+		if (surfaceRenderer == null) {
+			data.dispose();
+			return;
+		}
+		synchronized (surfaceRenderer.drawLock) {
+			data.dispose();
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (surfaceRenderer == null) {
+			super.onDraw(canvas);
+			return;
+		}
+		// The surface behind shows the frames; keep it in step with scaling and panning
+		surfaceRenderer.setTransform(getImageMatrix(), getScrollX() - getPaddingLeft(), getScrollY() - getPaddingTop(),
+				getScaleType(), getVisibleWidth(), getVisibleHeight());
+	}
+
 	private Runnable reDraw = new Runnable() {
 		public void run() {
 			if (showDesktopInfo) {
@@ -743,7 +1073,22 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	
 	private void reDraw() {
 		if (repaintsEnabled)
-			handler.post(reDraw);
+			framePacer.markDirty();
+	}
+
+	/**
+	 * @return Number of times decoded frames were shown
+	 */
+	public long getPresentedFrames() {
+		return framePacer.getPresentedFrames();
+	}
+
+	/**
+	 * @return Number of FramebufferUpdates not shown on their own, because the next one
+	 * was decoded before they could be
+	 */
+	public long getDroppedFrames() {
+		return framePacer.getDroppedFrames();
 	}
 	
 	public void disableRepaints() {
@@ -847,10 +1192,30 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		if(isScrolling)
 			return false;
 
+		// Positions Android batched into this move, so a drag follows the finger exactly.
+		// changeTouchCoordinatesToFullFrame only moved the historical samples along with
+		// the current one; scale their distance from it as well.
+		if (downEvent && evt.getAction() == MotionEvent.ACTION_MOVE && settings.getUseHistoricalPointerSamples()) {
+			float scale = getScale();
+			float x = evt.getX();
+			float y = evt.getY();
+			for (int h = 0; h < evt.getHistorySize(); h++) {
+				processPointerEvent((int)(x + (evt.getHistoricalX(h) - x) / scale), (int)(y + (evt.getHistoricalY(h) - y) / scale),
+						MotionEvent.ACTION_MOVE, evt.getMetaState(), downEvent, useRightButton, true);
+			}
+		}
+
 		return processPointerEvent((int)evt.getX(),(int)evt.getY(), evt.getAction(), evt.getMetaState(), downEvent, useRightButton);
 	}
 	
 	boolean processPointerEvent(int x, int y, int action, int modifiers, boolean mouseIsDown, boolean useRightButton) {
+		return processPointerEvent(x, y, action, modifiers, mouseIsDown, useRightButton, false);
+	}
+
+	/**
+	 * @param sendNow If true, moves are not held back by the pointer rate limit
+	 */
+	private boolean processPointerEvent(int x, int y, int action, int modifiers, boolean mouseIsDown, boolean useRightButton, boolean sendNow) {
 		// If we scroll, do not move the pointer
 		if(isScrolling)
 			return false;
@@ -873,16 +1238,54 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		    if ( mouseY<0) mouseY=0;
 		    else if ( mouseY>=rfb.framebufferHeight) mouseY=rfb.framebufferHeight-1;
 		    bitmapData.invalidateMousePosition();
-			try {
-				rfb.writePointerEvent(mouseX,mouseY,modifiers,pointerMask);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+		    writePointerMove(modifiers, sendNow || pointerMask != lastSentPointerMask);
 		    panToMouse();
 			return true;
 		}
 		return false;		
 	}
+
+	// Pointer rate limiting; moves inside the interval are merged and the
+	// latest position goes out when it ends
+	private int lastSentPointerMask;
+	private long lastPointerMoveTime;
+	private boolean pointerMovePending;
+	private int pendingPointerModifiers;
+	private final Runnable pointerFlush = new Runnable() {
+		public void run() {
+			pointerMovePending = false;
+			writePointerMove(pendingPointerModifiers, true);
+		}
+	};
+
+	/**
+	 * Send the pointer position, unless a move was sent less than the rate limit interval ago
+	 * @param modifiers
+	 * @param sendNow Send even if within the interval, as for button changes
+	 */
+	private void writePointerMove(int modifiers, boolean sendNow) {
+		int rate = settings.getMaxPointerMovesPerSecond();
+		long now = SystemClock.uptimeMillis();
+		if (! sendNow && rate > 0 && now - lastPointerMoveTime < 1000 / rate) {
+			pendingPointerModifiers = modifiers;
+			if (! pointerMovePending) {
+				pointerMovePending = true;
+				handler.postAtTime(pointerFlush, lastPointerMoveTime + 1000 / rate);
+			}
+			return;
+		}
+		if (pointerMovePending) {
+			handler.removeCallbacks(pointerFlush);
+			pointerMovePending = false;
+		}
+		lastPointerMoveTime = now;
+		try {
+			rfb.writePointerEvent(mouseX,mouseY,modifiers,pointerMask);
+			lastSentPointerMask = pointerMask;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 	
 	/**
 	 * Moves the scroll while the volume key is held down
@@ -1124,24 +1527,33 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			return;
 
 		if (preferredEncoding == -1) {
-			// Preferred format is ZRLE
-			preferredEncoding = RfbProto.EncodingZRLE;
-		} else {
-			// Auto encoder selection is not enabled.
-			if (autoSelectOnly)
+			// Preferred format is Tight
+			preferredEncoding = RfbProto.EncodingTight;
+		} else if (autoSelectOnly) {
+			// Cheap to decode encodings on fast links, the tightest ones on slow links
+			if (! settings.getAdaptiveEncoding() || adaptiveEncoding == null || ! adaptiveEncoding.update())
 				return;
+			preferredEncoding = adaptiveEncoding.preferredEncoding;
+			compressLevel = adaptiveEncoding.compressLevel;
+			jpegQuality = adaptiveEncoding.jpegQuality;
 		}
 
-		int[] encodings = new int[20];
+		int[] encodings = new int[32];
 		int nEncodings = 0;
 
 		encodings[nEncodings++] = preferredEncoding;
+		// LZO is cheaper to decode than zlib; UltraVNC servers fall back to it
+		// when they do not support the preferred encoding
+		if (rfb.ultraVncServer)
+			encodings[nEncodings++] = RfbProto.EncodingUltra;
 		if (useCopyRect)
 			encodings[nEncodings++] = RfbProto.EncodingCopyRect;
-		// if (preferredEncoding != RfbProto.EncodingTight)
-		// encodings[nEncodings++] = RfbProto.EncodingTight;
+		if (preferredEncoding != RfbProto.EncodingTight)
+			encodings[nEncodings++] = RfbProto.EncodingTight;
 		if (preferredEncoding != RfbProto.EncodingZRLE)
 			encodings[nEncodings++] = RfbProto.EncodingZRLE;
+		if (preferredEncoding != RfbProto.EncodingTRLE)
+			encodings[nEncodings++] = RfbProto.EncodingTRLE;
 		if (preferredEncoding != RfbProto.EncodingHextile)
 			encodings[nEncodings++] = RfbProto.EncodingHextile;
 		if (preferredEncoding != RfbProto.EncodingZlib)
@@ -1165,6 +1577,12 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 
 		encodings[nEncodings++] = RfbProto.EncodingLastRect;
 		encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
+		encodings[nEncodings++] = RfbProto.EncodingExtendedDesktopSize;
+
+		if (settings.getUseContinuousUpdates()) {
+			encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
+			encodings[nEncodings++] = RfbProto.EncodingFence;
+		}
 
 		boolean encodingsWereChanged = false;
 		if (nEncodings != nEncodingsSaved) {
@@ -1193,33 +1611,17 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	// Handle a CopyRect rectangle.
 	//
 
-  final Paint handleCopyRectPaint = new Paint();
+	final Paint handleCopyRectPaint = new Paint();
+	final Rect handleCopyRectSrc = new Rect();
+	final Rect handleCopyRectDest = new Rect();
 	private void handleCopyRect(int x, int y, int w, int h) throws IOException {
-
-		/**
-		 * This does not work properly yet.
-		 */
-
 		rfb.readCopyRect();
 		if ( ! bitmapData.validDraw(x, y, w, h))
 			return;
-		// Source Coordinates
-		int leftSrc = rfb.copyRectSrcX;
-		int topSrc = rfb.copyRectSrcY;
-		int rightSrc = topSrc + w;
-		int bottomSrc = topSrc + h;
-
-		// Change
-		int dx = x - rfb.copyRectSrcX;
-		int dy = y - rfb.copyRectSrcY;
 
-		// Destination Coordinates
-		int leftDest = leftSrc + dx;
-		int topDest = topSrc + dy;
-		int rightDest = rightSrc + dx;
-		int bottomDest = bottomSrc + dy;
-
-		bitmapData.copyRect(new Rect(leftSrc, topSrc, rightSrc, bottomSrc), new Rect(leftDest, topDest, rightDest, bottomDest), handleCopyRectPaint);
+		handleCopyRectSrc.set(rfb.copyRectSrcX, rfb.copyRectSrcY, rfb.copyRectSrcX + w, rfb.copyRectSrcY + h);
+		handleCopyRectDest.set(x, y, x + w, y + h);
+		bitmapData.copyRect(handleCopyRectSrc, handleCopyRectDest, handleCopyRectPaint);
 
 		reDraw();
 	}
@@ -1239,9 +1641,8 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		} else {
 			pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
 		}
-		handleRREPaint.setColor(pixel);
 		if ( valid)
-			bitmapData.drawRect(x, y, w, h, handleRREPaint);
+			bitmapData.fillRect(x, y, w, h, pixel);
 
 		int len = nSubrects * (bytesPerPixel + 8);
 		if (len > rre_buf.length)
@@ -1266,9 +1667,9 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			sw = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
 			sh = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
 
-			handleRREPaint.setColor(pixel);
-			bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+			bitmapData.fillRect(sx, sy, sw, sh, pixel);
 		}
+		bitmapData.updateBitmap(x, y, w, h);
 
 		reDraw();
 	}
@@ -1288,11 +1689,10 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		} else {
 			pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
 		}
-		handleRREPaint.setColor(pixel);
 		if ( valid)
-			bitmapData.drawRect(x, y, w, h, handleRREPaint);
+			bitmapData.fillRect(x, y, w, h, pixel);
 
-		int len = nSubrects * (bytesPerPixel + 8);
+		int len = nSubrects * (bytesPerPixel + 4);
 		if (len > rre_buf.length)
 			rre_buf = new byte[len];
 		
@@ -1315,9 +1715,9 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 			sw = rre_buf[i++] & 0xFF;
 			sh = rre_buf[i++] & 0xFF;
 
-			handleRREPaint.setColor(pixel);
-			bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+			bitmapData.fillRect(sx, sy, sw, sh, pixel);
 		}
+		bitmapData.updateBitmap(x, y, w, h);
 
 		reDraw();
 	}
@@ -1329,10 +1729,14 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	// These colors should be kept between handleHextileSubrect() calls.
 	private int hextile_bg, hextile_fg;
 
-	private void handleHextileRect(int x, int y, int w, int h) throws IOException {
+	private void handleHextileRect(int x, int y, int w, int h) throws Exception {
+
+		if (hextileInStream == null)
+			hextileInStream = new RfbInStream(rfb);
 
 		hextile_bg = Color.BLACK;
 		hextile_fg = Color.BLACK;
+		int tilesAfter = ((w + 15) / 16) * ((h + 15) / 16);
 
 		for (int ty = y; ty < y + h; ty += 16) {
 			int th = 16;
@@ -1344,7 +1748,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 				if (x + w - tx < 16)
 					tw = x + w - tx;
 
-				handleHextileSubrect(tx, ty, tw, th);
+				handleHextileSubrect(hextileInStream, tx, ty, tw, th, --tilesAfter);
 			}
 
 			// Finished with a row of tiles, now let's show it.
@@ -1353,119 +1757,117 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	}
 
 	//
-	// Handle one tile in the Hextile-encoded data.
+	// Handle one tile in the Hextile-encoded data.  Each part of the tile is
+	// made available in the stream's buffer with hextileCheck() and parsed
+	// from there, instead of one read per color, count and row.
 	//
 
-	Paint handleHextileSubrectPaint = new Paint();
-	byte[] backgroundColorBuffer = new byte[4];
-	private void handleHextileSubrect(int tx, int ty, int tw, int th) throws IOException {
+	private void handleHextileSubrect(RfbInStream is, int tx, int ty, int tw, int th, int tilesAfter) throws Exception {
 
-		int subencoding = rfb.is.readUnsignedByte();
+		hextileCheck(is, 1, tilesAfter);
+		int subencoding = is.readU8();
+		boolean valid=bitmapData.validDraw(tx, ty, tw, th);
+		int[] pixels = bitmapData.bitmapPixels;
 
 		// Is it a raw-encoded sub-rectangle?
 		if ((subencoding & RfbProto.HextileRaw) != 0) {
-			handleRawRect(tx, ty, tw, th, false);
+			int len = tw * th * bytesPerPixel;
+			hextileCheck(is, len, tilesAfter);
+			byte[] b = is.getbuf();
+			int i = is.getptr();
+			is.setptr(i + len);
+			if ( ! valid)
+				return;
+			for (int dy = ty; dy < ty + th; dy++) {
+				int offset = bitmapData.offset(tx, dy);
+				if (bytesPerPixel == 1) {
+					for (int dx = 0; dx < tw; dx++)
+						pixels[offset + dx] = colorPalette[0xFF & b[i++]];
+				} else {
+					for (int dx = 0; dx < tw; dx++, i += 4)
+						pixels[offset + dx] = (b[i + 2] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i] & 0xff);
+				}
+			}
+			bitmapData.updateBitmap(tx, ty, tw, th);
 			return;
 		}
 
-		boolean valid=bitmapData.validDraw(tx, ty, tw, th);
-		// Read and draw the background if specified.
-		if (bytesPerPixel > backgroundColorBuffer.length) {
-		  throw new RuntimeException("impossible colordepth");
-		}
+		// Background and foreground colors and the number of sub-rectangles, as specified
+		int headerLen = 0;
+		if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+			headerLen += bytesPerPixel;
+		if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+			headerLen += bytesPerPixel;
+		if ((subencoding & RfbProto.HextileAnySubrects) != 0)
+			headerLen++;
+		hextileCheck(is, headerLen, tilesAfter);
+		byte[] b = is.getbuf();
+		int i = is.getptr();
+		is.setptr(i + headerLen);
+
 		if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
-			rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-			if (bytesPerPixel == 1) {
-				hextile_bg = colorPalette[0xFF & backgroundColorBuffer[0]];
-			} else {
-				hextile_bg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-			}
+			hextile_bg = hextileColor(b, i);
+			i += bytesPerPixel;
 		}
-		handleHextileSubrectPaint.setColor(hextile_bg);
-		handleHextileSubrectPaint.setStyle(Paint.Style.FILL);
 		if ( valid )
-			bitmapData.drawRect(tx, ty, tw, th, handleHextileSubrectPaint);
+			bitmapData.fillRect(tx, ty, tw, th, hextile_bg);
 
-		// Read the foreground color if specified.
 		if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
-			rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-			if (bytesPerPixel == 1) {
-				hextile_fg = colorPalette[0xFF & backgroundColorBuffer[0]];
-			} else {
-				hextile_fg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-			}
+			hextile_fg = hextileColor(b, i);
+			i += bytesPerPixel;
 		}
 
 		// Done with this tile if there is no sub-rectangles.
-		if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+		if ((subencoding & RfbProto.HextileAnySubrects) == 0) {
+			if ( valid )
+				bitmapData.updateBitmap(tx, ty, tw, th);
 			return;
-
-		int nSubrects = rfb.is.readUnsignedByte();
-		int bufsize = nSubrects * 2;
-		if ((subencoding & RfbProto.HextileSubrectsColoured) != 0) {
-			bufsize += nSubrects * bytesPerPixel;
 		}
-		if (rre_buf.length < bufsize)
-			rre_buf = new byte[bufsize];
-		rfb.readFully(rre_buf, 0, bufsize);
 
-		int b1, b2, sx, sy, sw, sh;
-		int i = 0;
-		if ((subencoding & RfbProto.HextileSubrectsColoured) == 0) {
-
-			// Sub-rectangles are all of the same color.
-			handleHextileSubrectPaint.setColor(hextile_fg);
-			for (int j = 0; j < nSubrects; j++) {
-				b1 = rre_buf[i++] & 0xFF;
-				b2 = rre_buf[i++] & 0xFF;
-				sx = tx + (b1 >> 4);
-				sy = ty + (b1 & 0xf);
-				sw = (b2 >> 4) + 1;
-				sh = (b2 & 0xf) + 1;
-				if ( valid)
-					bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
-			}
-		} else if (bytesPerPixel == 1) {
-
-			// BGR233 (8-bit color) version for colored sub-rectangles.
-			for (int j = 0; j < nSubrects; j++) {
-				hextile_fg = colorPalette[0xFF & rre_buf[i++]];
-				b1 = rre_buf[i++] & 0xFF;
-				b2 = rre_buf[i++] & 0xFF;
-				sx = tx + (b1 >> 4);
-				sy = ty + (b1 & 0xf);
-				sw = (b2 >> 4) + 1;
-				sh = (b2 & 0xf) + 1;
-				handleHextileSubrectPaint.setColor(hextile_fg);
-				if ( valid)
-					bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+		int nSubrects = b[i] & 0xFF;
+		boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+		int len = nSubrects * (coloured ? bytesPerPixel + 2 : 2);
+		hextileCheck(is, len, tilesAfter);
+		b = is.getbuf();
+		i = is.getptr();
+		is.setptr(i + len);
+		if ( ! valid)
+			return;
+
+		int b1, b2;
+		for (int j = 0; j < nSubrects; j++) {
+			if (coloured) {
+				hextile_fg = hextileColor(b, i);
+				i += bytesPerPixel;
 			}
+			b1 = b[i++] & 0xFF;
+			b2 = b[i++] & 0xFF;
+			bitmapData.fillRect(tx + (b1 >> 4), ty + (b1 & 0xf), (b2 >> 4) + 1, (b2 & 0xf) + 1, hextile_fg);
+		}
+		bitmapData.updateBitmap(tx, ty, tw, th);
+	}
 
-		} else {
+	//
+	// Make len bytes of the tile available.  Hextile rects carry no length,
+	// but each tile after this one takes at least a byte, so that much more
+	// can be read ahead of what is asked for without going past the rect.
+	//
 
-			// Full-color (24-bit) version for colored sub-rectangles.
-			for (int j = 0; j < nSubrects; j++) {
-				hextile_fg = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-				i += 4;
-				b1 = rre_buf[i++] & 0xFF;
-				b2 = rre_buf[i++] & 0xFF;
-				sx = tx + (b1 >> 4);
-				sy = ty + (b1 & 0xf);
-				sw = (b2 >> 4) + 1;
-				sh = (b2 & 0xf) + 1;
-				handleHextileSubrectPaint.setColor(hextile_fg);
-				if ( valid )
-					bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
-			}
+	private static void hextileCheck(RfbInStream is, int len, int tilesAfter) throws Exception {
+		is.setLimit(Math.max(0, len + tilesAfter - (is.getend() - is.getptr())));
+		is.check(len);
+	}
 
-		}
+	private int hextileColor(byte[] b, int i) {
+		if (bytesPerPixel == 1)
+			return colorPalette[0xFF & b[i]];
+		return Color.rgb(b[i + 2] & 0xFF, b[i + 1] & 0xFF, b[i] & 0xFF);
 	}
 
 	//
 	// Handle a ZRLE-encoded rectangle.
 	//
 
-  Paint handleZRLERectPaint = new Paint();
   int[] handleZRLERectPalette = new int[128];
 	private void handleZRLERect(int x, int y, int w, int h) throws Exception {
 
@@ -1476,61 +1878,117 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		if (nBytes > 64 * 1024 * 1024)
 			throw new Exception("ZRLE decoder: illegal compressed data size");
 
+		zrleInStream.setUnderlying(compressedPayload(nBytes), nBytes);
+
+		handleRLETiles(zrleInStream, x, y, w, h, 64, false);
+
+		zrleInStream.reset();
+
+		reDraw();
+	}
+
+	//
+	// Wait for the rects being decoded on the pool and show them.
+	//
+
+	private void finishParallelDecode() {
+		if (parallelDecoder != null && parallelDecoder.finish(bitmapData, adaptiveEncoding))
+			reDraw();
+	}
+
+	//
+	// The source of a compressed payload of nBytes.  When streaming, tiles
+	// are decoded while the rest of the payload is still arriving; otherwise
+	// the whole payload is read first.
+	//
+
+	private InStream compressedPayload(int nBytes) throws Exception {
+		if (settings.getStreamZlibRects()) {
+			if (payloadInStream == null)
+				payloadInStream = new RfbInStream(rfb);
+			payloadInStream.setLimit(nBytes);
+			return payloadInStream;
+		}
+
 		if (zrleBuf == null || zrleBuf.length < nBytes) {
 			zrleBuf = new byte[nBytes+4096];
 		}
 
 		rfb.readFully(zrleBuf, 0, nBytes);
 
-		zrleInStream.setUnderlying(new MemInStream(zrleBuf, 0, nBytes), nBytes);
-		
+		return new MemInStream(zrleBuf, 0, nBytes);
+	}
+
+	//
+	// Handle a TRLE-encoded rectangle.  The tiles are ZRLE tiles without the
+	// zlib layer, read straight from the socket.
+	//
+
+	private void handleTRLERect(int x, int y, int w, int h) throws Exception {
+
+		if (trleInStream == null)
+			trleInStream = new RfbInStream(rfb);
+
+		handleRLETiles(trleInStream, x, y, w, h, 16, true);
+
+		reDraw();
+	}
+
+	//
+	// Decode the tiles shared by ZRLE and TRLE.
+	//
+
+	private void handleRLETiles(InStream is, int x, int y, int w, int h, int tileSize, boolean paletteReuse) throws Exception {
+
 		boolean valid=bitmapData.validDraw(x, y, w, h);
 
-		for (int ty = y; ty < y + h; ty += 64) {
+		for (int ty = y; ty < y + h; ty += tileSize) {
 
-			int th = Math.min(y + h - ty, 64);
+			int th = Math.min(y + h - ty, tileSize);
 
-			for (int tx = x; tx < x + w; tx += 64) {
+			for (int tx = x; tx < x + w; tx += tileSize) {
 
-				int tw = Math.min(x + w - tx, 64);
+				int tw = Math.min(x + w - tx, tileSize);
 
-				int mode = zrleInStream.readU8();
+				int mode = is.readU8();
 				boolean rle = (mode & 128) != 0;
 				int palSize = mode & 127;
 
-				readZrlePalette(handleZRLERectPalette, palSize);
+				if (paletteReuse && (mode == 127 || mode == 129)) {
+					// Same palette as the previous tile
+					palSize = trlePalSize;
+				} else {
+					readZrlePalette(is, handleZRLERectPalette, palSize);
+					trlePalSize = palSize;
+				}
 
-				if (palSize == 1) {
+				if (palSize == 1 && ! rle) {
 					int pix = handleZRLERectPalette[0];
 					int c = (bytesPerPixel == 1) ? colorPalette[0xFF & pix] : (0xFF000000 | pix);
-					handleZRLERectPaint.setColor(c);
-					handleZRLERectPaint.setStyle(Paint.Style.FILL);
-					if ( valid)
-						bitmapData.drawRect(tx, ty, tw, th, handleZRLERectPaint);
+					if ( valid) {
+						bitmapData.fillRect(tx, ty, tw, th, c);
+						bitmapData.updateBitmap(tx, ty, tw, th);
+					}
 					continue;
 				}
 
 				if (!rle) {
 					if (palSize == 0) {
-						readZrleRawPixels(tw, th);
+						readZrleRawPixels(is, tw, th);
 					} else {
-						readZrlePackedPixels(tw, th, handleZRLERectPalette, palSize);
+						readZrlePackedPixels(is, tw, th, handleZRLERectPalette, palSize);
 					}
 				} else {
 					if (palSize == 0) {
-						readZrlePlainRLEPixels(tw, th);
+						readZrlePlainRLEPixels(is, tw, th);
 					} else {
-						readZrlePackedRLEPixels(tw, th, handleZRLERectPalette);
+						readZrlePackedRLEPixels(is, tw, th, handleZRLERectPalette);
 					}
 				}
 				if ( valid )
 					handleUpdatedZrleTile(tx, ty, tw, th);
 			}
 		}
-
-		zrleInStream.reset();
-
-		reDraw();
 	}
 
 	//
@@ -1541,17 +1999,13 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 	private void handleZlibRect(int x, int y, int w, int h) throws Exception {
 		boolean valid = bitmapData.validDraw(x, y, w, h);
 		int nBytes = rfb.is.readInt();
+		if (nBytes > 64 * 1024 * 1024)
+			throw new Exception("Zlib decoder: illegal compressed data size");
 
-		if (zlibBuf == null || zlibBuf.length < nBytes) {
-			zlibBuf = new byte[nBytes*2];
-		}
-
-		rfb.readFully(zlibBuf, 0, nBytes);
-
-		if (zlibInflater == null) {
-			zlibInflater = new Inflater();
+		if (zlibInStream == null) {
+			zlibInStream = new ZlibInStream();
 		}
-		zlibInflater.setInput(zlibBuf, 0, nBytes);
+		zlibInStream.setUnderlying(compressedPayload(nBytes), nBytes);
 		
 		int[] pixels=bitmapData.bitmapPixels;
 
@@ -1562,7 +2016,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		  }
 			int i, offset;
 			for (int dy = y; dy < y + h; dy++) {
-				zlibInflater.inflate(handleZlibRectBuffer,  0, w);
+				zlibInStream.readBytes(handleZlibRectBuffer, 0, w);
 				if ( ! valid)
 					continue;
 				offset = bitmapData.offset(x, dy);
@@ -1578,7 +2032,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		  }
 			int i, offset;
 			for (int dy = y; dy < y + h; dy++) {
-				zlibInflater.inflate(handleZlibRectBuffer, 0, l);
+				zlibInStream.readBytes(handleZlibRectBuffer, 0, l);
 				if ( ! valid)
 					continue;
 				offset = bitmapData.offset(x, dy);
@@ -1588,6 +2042,7 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 				}
 			}
 		}
+		zlibInStream.reset();
 		if ( ! valid)
 			return;
 		bitmapData.updateBitmap(x, y, w, h);
@@ -1595,17 +2050,249 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 		reDraw();
 	}
 
-	private int readPixel(InStream is) throws Exception {
-		int pix;
-		if (bytesPerPixel == 1) {
-			pix = is.readU8();
+	//
+	// Handle an Ultra-encoded rectangle: raw pixels compressed with LZO1X.
+	//
+
+	private byte[] ultraBuf;
+	private byte[] ultraRawBuf;
+	private void handleUltraRect(int x, int y, int w, int h) throws Exception {
+		boolean valid = bitmapData.validDraw(x, y, w, h);
+		int nBytes = rfb.is.readInt();
+		if (nBytes < 0 || nBytes > 64 * 1024 * 1024)
+			throw new Exception("Ultra decoder: illegal compressed data size");
+
+		if (ultraBuf == null || ultraBuf.length < nBytes) {
+			ultraBuf = new byte[nBytes + 4096];
+		}
+
+		rfb.readFully(ultraBuf, 0, nBytes);
+		if ( ! valid)
+			return;
+
+		int rawLen = w * h * bytesPerPixel;
+		if (ultraRawBuf == null || ultraRawBuf.length < rawLen) {
+			ultraRawBuf = new byte[rawLen];
+		}
+		int n = Lzo1xDecompressor.decompress(ultraBuf, 0, nBytes, ultraRawBuf, 0, rawLen);
+		if (n != rawLen)
+			throw new Exception("Ultra decoder: expected " + rawLen + " bytes, got " + n);
+
+		int[] pixels=bitmapData.bitmapPixels;
+		int i, offset, idx = 0;
+		for (int dy = y; dy < y + h; dy++) {
+			offset = bitmapData.offset(x, dy);
+			if (bytesPerPixel == 1) {
+				for (i = 0; i < w; i++)
+					pixels[offset + i] = colorPalette[0xFF & ultraRawBuf[idx++]];
+			} else {
+				for (i = 0; i < w; i++, idx += 4)
+					pixels[offset + i] = (ultraRawBuf[idx + 2] & 0xFF) << 16 | (ultraRawBuf[idx + 1] & 0xFF) << 8 | (ultraRawBuf[idx] & 0xFF);
+			}
+		}
+		bitmapData.updateBitmap(x, y, w, h);
+
+		reDraw();
+	}
+
+	//
+	// Handle a Tight-encoded rectangle.
+	//
+
+	byte[] handleTightRectPixel = new byte[3];
+	private void handleTightRect(int x, int y, int w, int h) throws Exception {
+		boolean valid = bitmapData.validDraw(x, y, w, h);
+		int tpixelSize = (bytesPerPixel == 1) ? 1 : 3;
+		int compCtl = rfb.is.readUnsignedByte();
+
+		// Reset the zlib streams the server has flagged.
+		for (int streamId = 0; streamId < 4; streamId++) {
+			if ((compCtl & 1) != 0 && tightInflaters[streamId] != null)
+				tightInflaters[streamId].reset();
+			compCtl >>= 1;
+		}
+
+		if (compCtl > RfbProto.TightMaxSubencoding)
+			throw new Exception("Tight decoder: incorrect subencoding " + compCtl);
+
+		int[] pixels = bitmapData.bitmapPixels;
+
+		// Solid-color rectangle.
+		if (compCtl == RfbProto.TightFill) {
+			rfb.readFully(handleTightRectPixel, 0, tpixelSize);
+			if ( ! valid)
+				return;
+			int pixel = tightPixel(handleTightRectPixel, 0);
+			int offset;
+			for (int dy = y; dy < y + h; dy++) {
+				offset = bitmapData.offset(x, dy);
+				Arrays.fill(pixels, offset, offset + w, pixel);
+			}
+			bitmapData.updateBitmap(x, y, w, h);
+			reDraw();
+			return;
+		}
+
+		// JPEG-compressed rectangle.
+		if (compCtl == RfbProto.TightJpeg) {
+			int len = rfb.readCompactLen();
+			if (tightZlibBuf == null || tightZlibBuf.length < len)
+				tightZlibBuf = new byte[len + 4096];
+			rfb.readFully(tightZlibBuf, 0, len);
+			if ( ! valid)
+				return;
+			Bitmap jpeg = BitmapFactory.decodeByteArray(tightZlibBuf, 0, len);
+			if (jpeg == null)
+				throw new Exception("Tight decoder: could not decode JPEG data");
+			if (jpeg.getWidth() != w || jpeg.getHeight() != h) {
+				String size = jpeg.getWidth() + "x" + jpeg.getHeight();
+				jpeg.recycle();
+				throw new IOException("Tight decoder: JPEG is " + size + ", rect is " + w + "x" + h);
+			}
+			jpeg.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
+			jpeg.recycle();
+			bitmapData.updateBitmap(x, y, w, h);
+			reDraw();
+			return;
+		}
+
+		// Read filter id and parameters.
+		int numColors = 0;
+		int rowSize = w;
+		boolean useGradient = false;
+		if ((compCtl & RfbProto.TightExplicitFilter) != 0) {
+			int filterId = rfb.is.readUnsignedByte();
+			if (filterId == RfbProto.TightFilterPalette) {
+				numColors = rfb.is.readUnsignedByte() + 1;
+				rfb.readFully(tightPaletteBuf, 0, numColors * tpixelSize);
+				for (int i = 0; i < numColors; i++)
+					tightPalette[i] = tightPixel(tightPaletteBuf, i * tpixelSize);
+				if (numColors == 2)
+					rowSize = (w + 7) / 8;
+			} else if (filterId == RfbProto.TightFilterGradient) {
+				if (bytesPerPixel == 1)
+					throw new Exception("Tight decoder: gradient filter needs true color");
+				useGradient = true;
+			} else if (filterId != RfbProto.TightFilterCopy) {
+				throw new Exception("Tight decoder: incorrect filter id " + filterId);
+			}
+		}
+		if (numColors == 0)
+			rowSize *= tpixelSize;
+
+		// Read and, if necessary, inflate the pixel data.  The data is always
+		// consumed, even if it is not drawn, to keep the zlib streams in sync.
+		int dataSize = h * rowSize;
+		if (tightBuf == null || tightBuf.length < dataSize)
+			tightBuf = new byte[dataSize];
+		if (dataSize < RfbProto.TightMinToCompress) {
+			rfb.readFully(tightBuf, 0, dataSize);
+		} else {
+			int zlibDataLen = rfb.readCompactLen();
+			if (tightZlibBuf == null || tightZlibBuf.length < zlibDataLen)
+				tightZlibBuf = new byte[zlibDataLen + 4096];
+			rfb.readFully(tightZlibBuf, 0, zlibDataLen);
+			int streamId = compCtl & 0x03;
+			if (tightInflaters[streamId] == null)
+				tightInflaters[streamId] = new Inflater();
+			Inflater inflater = tightInflaters[streamId];
+			inflater.setInput(tightZlibBuf, 0, zlibDataLen);
+			int inflated = 0;
+			while (inflated < dataSize) {
+				int n = inflater.inflate(tightBuf, inflated, dataSize - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+					throw new Exception("Tight decoder: compressed data too short");
+				inflated += n;
+			}
+		}
+		if ( ! valid)
+			return;
+
+		if (numColors == 2) {
+			decodeTightMonoData(x, y, w, h);
+		} else if (numColors != 0) {
+			int i = 0, offset;
+			for (int dy = y; dy < y + h; dy++) {
+				offset = bitmapData.offset(x, dy);
+				for (int dx = 0; dx < w; dx++)
+					pixels[offset + dx] = tightPalette[tightBuf[i++] & 0xFF];
+			}
+		} else if (useGradient) {
+			decodeTightGradientData(x, y, w, h);
+		} else {
+			int i = 0, offset;
+			for (int dy = y; dy < y + h; dy++) {
+				offset = bitmapData.offset(x, dy);
+				for (int dx = 0; dx < w; dx++, i += tpixelSize)
+					pixels[offset + dx] = tightPixel(tightBuf, i);
+			}
+		}
+
+		bitmapData.updateBitmap(x, y, w, h);
+		reDraw();
+	}
+
+	/**
+	 * Convert a Tight TPIXEL (one palette index byte, or three bytes in R, G, B order) to a color
+	 */
+	private int tightPixel(byte[] buf, int idx) {
+		if (bytesPerPixel == 1)
+			return colorPalette[buf[idx] & 0xFF];
+		return (buf[idx] & 0xFF) << 16 | (buf[idx + 1] & 0xFF) << 8 | (buf[idx + 2] & 0xFF);
+	}
+
+	private void decodeTightMonoData(int x, int y, int w, int h) {
+		int[] pixels = bitmapData.bitmapPixels;
+		int rowBytes = (w + 7) / 8;
+		int offset;
+		for (int dy = 0; dy < h; dy++) {
+			int src = dy * rowBytes;
+			offset = bitmapData.offset(x, y + dy);
+			for (int dx = 0; dx < w; dx++)
+				pixels[offset + dx] = tightPalette[(tightBuf[src + (dx >> 3)] >> (7 - (dx & 7))) & 1];
+		}
+	}
+
+	private void decodeTightGradientData(int x, int y, int w, int h) {
+		int rowLen = w * 3;
+		if (tightPrevRow == null || tightPrevRow.length < rowLen) {
+			tightPrevRow = new int[rowLen];
+			tightThisRow = new int[rowLen];
 		} else {
-			int p1 = is.readU8();
-			int p2 = is.readU8();
-			int p3 = is.readU8();
-			pix = (p3 & 0xFF) << 16 | (p2 & 0xFF) << 8 | (p1 & 0xFF);
+			Arrays.fill(tightPrevRow, 0, rowLen, 0);
+		}
+		int[] pixels = bitmapData.bitmapPixels;
+		int src = 0, offset;
+		for (int dy = 0; dy < h; dy++) {
+			int[] prevRow = tightPrevRow;
+			int[] thisRow = tightThisRow;
+			offset = bitmapData.offset(x, y + dy);
+			for (int dx = 0; dx < w; dx++) {
+				int i = dx * 3;
+				for (int c = 0; c < 3; c++, i++) {
+					// Predict each component from the left, upper and upper-left neighbours
+					int est = prevRow[i];
+					if (dx > 0) {
+						est += thisRow[i - 3] - prevRow[i - 3];
+						if (est > 0xFF)
+							est = 0xFF;
+						else if (est < 0)
+							est = 0;
+					}
+					thisRow[i] = (est + tightBuf[src++]) & 0xFF;
+				}
+				i -= 3;
+				pixels[offset + dx] = thisRow[i] << 16 | thisRow[i + 1] << 8 | thisRow[i + 2];
+			}
+			tightPrevRow = thisRow;
+			tightThisRow = prevRow;
 		}
-		return pix;
+	}
+
+	private int readPixel(InStream is) throws Exception {
+		if (bytesPerPixel == 1)
+			return is.readU8();
+		return is.readCPixel();
 	}
 
 	byte[] readPixelsBuffer = new byte[128];
@@ -1619,118 +2306,90 @@ public class VncCanvas extends androidx.appcompat.widget.AppCompatImageView {
 				dst[i] = (int) readPixelsBuffer[i] & 0xFF;
 			}
 		} else {
-		  final int l = count * 3;
-      if (l > readPixelsBuffer.length) {
-			readPixelsBuffer = new byte[l];
-      }
-			is.readBytes(readPixelsBuffer, 0, l);
-			for (int i = 0; i < count; i++) {
-			  final int idx = i*3;
-				dst[i] = ((readPixelsBuffer[idx + 2] & 0xFF) << 16 | (readPixelsBuffer[idx + 1] & 0xFF) << 8 | (readPixelsBuffer[idx] & 0xFF));
-			}
+			is.readCPixels(dst, 0, count);
 		}
 	}
 
-	private void readZrlePalette(int[] palette, int palSize) throws Exception {
-		readPixels(zrleInStream, palette, palSize);
+	private void readZrlePalette(InStream is, int[] palette, int palSize) throws Exception {
+		readPixels(is, palette, palSize);
 	}
 
-	private void readZrleRawPixels(int tw, int th) throws Exception {
+	private void readZrleRawPixels(InStream is, int tw, int th) throws Exception {
 		int len = tw * th;
 		if (zrleTilePixels == null || len > zrleTilePixels.length)
 			zrleTilePixels = new int[len];
-		readPixels(zrleInStream, zrleTilePixels, tw * th); // /
+		readPixels(is, zrleTilePixels, tw * th); // /
+		if (bytesPerPixel == 1) {
+			for (int i = 0; i < len; i++)
+				zrleTilePixels[i] = colorPalette[zrleTilePixels[i]];
+		}
 	}
 
-	private void readZrlePackedPixels(int tw, int th, int[] palette, int palSize) throws Exception {
+	private void readZrlePackedPixels(InStream is, int tw, int th, int[] palette, int palSize) throws Exception {
 
 		int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
-		int ptr = 0;
 		int len = tw * th;
 		if (zrleTilePixels == null || len > zrleTilePixels.length)
 			zrleTilePixels = new int[len];
 
-		for (int i = 0; i < th; i++) {
-			int eol = ptr + tw;
-			int b = 0;
-			int nbits = 0;
-
-			while (ptr < eol) {
-				if (nbits == 0) {
-					b = zrleInStream.readU8();
-					nbits = 8;
-				}
-				nbits -= bppp;
-				int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
-				if (bytesPerPixel == 1) {
-					if (index >= colorPalette.length)
-						Log.e(TAG, "zrlePlainRLEPixels palette lookup out of bounds " + index + " (0x" + Integer.toHexString(index) + ")");
-					zrleTilePixels[ptr++] = colorPalette[0xFF & palette[index]];
-				} else {
-					zrleTilePixels[ptr++] = palette[index];
-				}
-			}
+		for (int ptr = 0; ptr < len; ptr += tw)
+			is.readPackedRow(zrleTilePixels, ptr, tw, bppp, palette);
+		if (bytesPerPixel == 1) {
+			for (int i = 0; i < len; i++)
+				zrleTilePixels[i] = colorPalette[0xFF & zrleTilePixels[i]];
 		}
 	}
 
-	private void readZrlePlainRLEPixels(int tw, int th) throws Exception {
+	private void readZrlePlainRLEPixels(InStream is, int tw, int th) throws Exception {
 		int ptr = 0;
 		int end = ptr + tw * th;
 		if (zrleTilePixels == null || end > zrleTilePixels.length)
 			zrleTilePixels = new int[end];
 		while (ptr < end) {
-			int pix = readPixel(zrleInStream);
-			int len = 1;
-			int b;
-			do {
-				b = zrleInStream.readU8();
-				len += b;
-			} while (b == 255);
+			int pix = readPixel(is);
+			int len = is.readRunLength();
 
 			if (!(len <= end - ptr))
 				throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
 
-			if (bytesPerPixel == 1) {
-				while (len-- > 0)
-					zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-			} else {
-				while (len-- > 0)
-					zrleTilePixels[ptr++] = pix;
-			}
+			if (bytesPerPixel == 1)
+				pix = colorPalette[0xFF & pix];
+			ptr = fillRun(ptr, len, pix);
 		}
 	}
 
-	private void readZrlePackedRLEPixels(int tw, int th, int[] palette) throws Exception {
+	private void readZrlePackedRLEPixels(InStream is, int tw, int th, int[] palette) throws Exception {
 
 		int ptr = 0;
 		int end = ptr + tw * th;
 		if (zrleTilePixels == null || end > zrleTilePixels.length)
 			zrleTilePixels = new int[end];
 		while (ptr < end) {
-			int index = zrleInStream.readU8();
+			int index = is.readU8();
 			int len = 1;
 			if ((index & 128) != 0) {
-				int b;
-				do {
-					b = zrleInStream.readU8();
-					len += b;
-				} while (b == 255);
+				len = is.readRunLength();
 
 				if (!(len <= end - ptr))
 					throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
 			}
 
-			index &= 127;
-			int pix = palette[index];
+			int pix = palette[index & 127];
+			if (bytesPerPixel == 1)
+				pix = colorPalette[0xFF & pix];
+			ptr = fillRun(ptr, len, pix);
+		}
+	}
 
-			if (bytesPerPixel == 1) {
-				while (len-- > 0)
-					zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-			} else {
-				while (len-- > 0)
-					zrleTilePixels[ptr++] = pix;
-			}
+	// Short runs are most common; a loop beats the call for them
+	private int fillRun(int ptr, int len, int pix) {
+		if (len < 16) {
+			while (len-- > 0)
+				zrleTilePixels[ptr++] = pix;
+			return ptr;
 		}
+		Arrays.fill(zrleTilePixels, ptr, ptr + len, pix);
+		return ptr + len;
 	}
 
 	//
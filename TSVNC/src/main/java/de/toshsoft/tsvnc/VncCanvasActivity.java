@@ -38,6 +38,7 @@ import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -143,6 +144,8 @@ public class VncCanvasActivity extends Activity {
 		setContentView(R.layout.canvas);
 
 		vncCanvas = (VncCanvas) findViewById(R.id.vnc_canvas);
+		if (settings.getUseSurfaceRenderer())
+			vncCanvas.setSurfaceView((SurfaceView) findViewById(R.id.vnc_surface));
 		vncCanvas.initializeVncCanvas(settings, new Runnable() {
 			public void run() {
 				setModes();
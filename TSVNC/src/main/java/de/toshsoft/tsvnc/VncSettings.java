@@ -20,6 +20,7 @@ class VncSettings {
     private static final String VNC_PREF_COLOR_DEPTH = "vnc_pref_color_depth";
     private static final String VNC_PREF_MENU_OVERLAY = "vnc_pref_menu_overlay";
     private static final String VNC_PREF_AUTOMATIC_LOGIN = "vnc_pref_automatic_login";
+    private static final String VNC_PREF_FIT_REMOTE_TO_DEVICE = "vnc_pref_fit_remote_to_device";
 
     // Preferences
     private SharedPreferences sharedPref = null;
@@ -87,6 +88,10 @@ class VncSettings {
         return sharedPref.getBoolean(VNC_PREF_AUTOMATIC_LOGIN, false);
     }
 
+    public boolean getFitRemoteToDevice() {
+        return sharedPref.getBoolean(VNC_PREF_FIT_REMOTE_TO_DEVICE, false);
+    }
+
     public ImageView.ScaleType getScaleMode() {
         return ImageView.ScaleType.FIT_CENTER;
     }
@@ -119,6 +124,72 @@ class VncSettings {
         return true;
     }
 
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    // Pointer moves sent per second at most, 0 for no limit; button changes are never held back
+    public int getMaxPointerMovesPerSecond() {
+        return 60;
+    }
+
+    // Send the intermediate positions Android batches into a drag's move events
+    public boolean getUseHistoricalPointerSamples() {
+        return true;
+    }
+
+    // Inflate ZRLE and Zlib rects while they are still arriving, instead of reading them whole first
+    public boolean getStreamZlibRects() {
+        return true;
+    }
+
+    // Decode Raw, RRE, CoRRE and Hextile rects of an update in parallel; only used on multi-core devices
+    public boolean getParallelRectDecode() {
+        return true;
+    }
+
+    // Decode into a back buffer and show only complete FramebufferUpdates; falls back to one
+    // buffer when a second does not fit in the memory class
+    public boolean getDoubleBufferFramebuffer() {
+        return true;
+    }
+
+    // Draw frames on a SurfaceView from a render thread, so the UI thread only handles input
+    public boolean getUseSurfaceRenderer() {
+        return false;
+    }
+
+    // Present frames only once a whole FramebufferUpdate is decoded, instead of at the next vsync.
+    // Tear-free only together with getDoubleBufferFramebuffer(), which large desktops skip.
+    public boolean getPresentAtUpdateBoundaries() {
+        return false;
+    }
+
+    public boolean getUseContinuousUpdates() {
+        return true;
+    }
+
+    // Update requests kept queued ahead of the update being decoded,
+    // 0 only asks for the next update once the current one is decoded
+    public int getUpdateRequestPipelineDepth() {
+        return 1;
+    }
+
+    // Pick encoding, compress level and quality from measured throughput and decode cost
+    public boolean getAdaptiveEncoding() {
+        return true;
+    }
+
+    // Measured throughput above which the encoding cheapest to decode, usually TRLE, is preferred
+    public int getTrleMinKbitsPerSecond() {
+        return 16000;
+    }
+
+    // Let adaptive encoding ask for lossy JPEG in Tight on slower links; otherwise updates stay lossless
+    public boolean getAllowLossyEncoding() {
+        return false;
+    }
+
 
     // Setter
     public void setAddress(String address) {
@@ -161,6 +232,11 @@ class VncSettings {
         prefEditor.apply();
     }
 
+    public void setFitRemoteToDevice(boolean fitRemoteToDevice) {
+        prefEditor.putBoolean(VNC_PREF_FIT_REMOTE_TO_DEVICE, fitRemoteToDevice);
+        prefEditor.apply();
+    }
+
     public void setScaleMode(ImageView.ScaleType scaleType) {
     }
 
@@ -0,0 +1,330 @@
+package de.toshsoft.tsvnc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tiles per second of Hextile parsing, one readFully per color, count and subrect list
+ * against parsing each part of a tile from the buffer of an RfbInStream.
+ * <p>
+ * A 1280x1024 office-like frame is served over a loopback socket to a real RfbProto, so
+ * the reads go through ReadAheadInputStream with timing enabled as in VncCanvas.  VncCanvas
+ * is a View and cannot be created here; the two tile parsers below follow the old
+ * handleHextileSubrect and the current one, filling a plain pixel array.
+ * <p>
+ * Run with: ./gradlew :TSVNC:testDebugUnitTest --tests '*HextileBenchmark*' -i
+ */
+public class HextileBenchmark
+{
+	static final int WIDTH = 1280;
+	static final int HEIGHT = 1024;
+	static final int TILES = (WIDTH / 16) * (HEIGHT / 16);
+	static final int BYTES_PER_PIXEL = 4;
+	static final int FRAMES = 100;
+	static final int ROUNDS = 3;
+
+	private final int[] pixels = new int[WIDTH * HEIGHT];
+	// False to time only the parsing
+	private boolean filling;
+	private RfbProto rfb;
+	private int bg, fg;
+
+	// Only used by the old parser
+	private final byte[] colorBuf = new byte[BYTES_PER_PIXEL];
+	private byte[] subrectBuf = new byte[256 * (BYTES_PER_PIXEL + 2)];
+	private byte[] rawBuf = new byte[16 * BYTES_PER_PIXEL];
+
+	@Test
+	public void tilesPerSecond() throws Exception
+	{
+		byte[] frame = frame(new Random(1));
+		// Pixels of the last readFully run, to compare with the buffered parser
+		int[] oldPixels = null;
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int mode = 0; mode < 4; mode++)
+			{
+				filling = mode < 2;
+				boolean buffered = (mode & 1) != 0;
+				double mtiles = run(frame, buffered);
+				System.out.println(String.format("Hextile %s, %s: %.2f Mtiles/s", buffered ? "buffered" : "readFully",
+					filling ? "parse and fill" : "parse only", mtiles));
+				if (! filling)
+					continue;
+				if (! buffered)
+					oldPixels = pixels.clone();
+				else
+					assertArrayEquals(oldPixels, pixels);
+			}
+		}
+	}
+
+	/**
+	 * Decode FRAMES copies of the frame from a new connection
+	 * @return Millions of tiles per second
+	 */
+	private double run(final byte[] frame, boolean buffered) throws Exception
+	{
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try
+				{
+					Socket s = server.accept();
+					OutputStream os = s.getOutputStream();
+					for (int i = 0; i < FRAMES; i++)
+						os.write(frame);
+					s.close();
+				}
+				catch (IOException ioe)
+				{
+					throw new RuntimeException(ioe);
+				}
+			}
+		});
+		sender.start();
+		rfb = new RfbProto("127.0.0.1", server.getLocalPort());
+		try
+		{
+			RfbInStream is = new RfbInStream(rfb);
+			rfb.startTiming();
+			long start = System.nanoTime();
+			for (int f = 0; f < FRAMES; f++)
+			{
+				Arrays.fill(pixels, 0);
+				bg = fg = 0xFF000000;
+				int tilesAfter = TILES;
+				for (int ty = 0; ty < HEIGHT; ty += 16)
+				{
+					for (int tx = 0; tx < WIDTH; tx += 16)
+					{
+						if (buffered)
+							bufferedTile(is, tx, ty, 16, 16, --tilesAfter);
+						else
+							readFullyTile(tx, ty, 16, 16);
+					}
+				}
+				// Nothing of the next frame was read ahead
+				assertEquals(0, is.getend() - is.getptr());
+			}
+			long nanos = System.nanoTime() - start;
+			rfb.stopTiming();
+			assertEquals(-1, rfb.is.read());
+			return (double)TILES * FRAMES * 1000 / nanos;
+		}
+		finally
+		{
+			rfb.close();
+			server.close();
+			sender.join();
+		}
+	}
+
+	/**
+	 * Like handleHextileSubrect before it parsed from a buffered view
+	 */
+	private void readFullyTile(int tx, int ty, int tw, int th) throws IOException
+	{
+		int subencoding = rfb.is.readUnsignedByte();
+		if ((subencoding & RfbProto.HextileRaw) != 0)
+		{
+			int len = tw * BYTES_PER_PIXEL;
+			for (int dy = ty; dy < ty + th; dy++)
+			{
+				rfb.readFully(rawBuf, 0, len);
+				if (! filling)
+					continue;
+				int offset = dy * WIDTH + tx;
+				for (int dx = 0, i = 0; dx < tw; dx++, i += 4)
+					pixels[offset + dx] = color(rawBuf, i);
+			}
+			return;
+		}
+		if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+		{
+			rfb.readFully(colorBuf, 0, BYTES_PER_PIXEL);
+			bg = color(colorBuf, 0);
+		}
+		fill(tx, ty, tw, th, bg);
+		if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+		{
+			rfb.readFully(colorBuf, 0, BYTES_PER_PIXEL);
+			fg = color(colorBuf, 0);
+		}
+		if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+			return;
+		int nSubrects = rfb.is.readUnsignedByte();
+		boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+		int len = nSubrects * (coloured ? BYTES_PER_PIXEL + 2 : 2);
+		rfb.readFully(subrectBuf, 0, len);
+		subrects(subrectBuf, 0, nSubrects, coloured, tx, ty);
+	}
+
+	/**
+	 * Like handleHextileSubrect, with hextileCheck
+	 */
+	private void bufferedTile(RfbInStream is, int tx, int ty, int tw, int th, int tilesAfter) throws Exception
+	{
+		check(is, 1, tilesAfter);
+		int subencoding = is.readU8();
+		if ((subencoding & RfbProto.HextileRaw) != 0)
+		{
+			int len = tw * th * BYTES_PER_PIXEL;
+			check(is, len, tilesAfter);
+			byte[] b = is.getbuf();
+			int i = is.getptr();
+			is.setptr(i + len);
+			if (! filling)
+				return;
+			for (int dy = ty; dy < ty + th; dy++)
+			{
+				int offset = dy * WIDTH + tx;
+				for (int dx = 0; dx < tw; dx++, i += 4)
+					pixels[offset + dx] = color(b, i);
+			}
+			return;
+		}
+		int headerLen = 0;
+		if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+			headerLen += BYTES_PER_PIXEL;
+		if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+			headerLen += BYTES_PER_PIXEL;
+		if ((subencoding & RfbProto.HextileAnySubrects) != 0)
+			headerLen++;
+		check(is, headerLen, tilesAfter);
+		byte[] b = is.getbuf();
+		int i = is.getptr();
+		is.setptr(i + headerLen);
+		if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+		{
+			bg = color(b, i);
+			i += BYTES_PER_PIXEL;
+		}
+		fill(tx, ty, tw, th, bg);
+		if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+		{
+			fg = color(b, i);
+			i += BYTES_PER_PIXEL;
+		}
+		if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+			return;
+		int nSubrects = b[i] & 0xFF;
+		boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+		int len = nSubrects * (coloured ? BYTES_PER_PIXEL + 2 : 2);
+		check(is, len, tilesAfter);
+		b = is.getbuf();
+		i = is.getptr();
+		is.setptr(i + len);
+		subrects(b, i, nSubrects, coloured, tx, ty);
+	}
+
+	private static void check(RfbInStream is, int len, int tilesAfter) throws Exception
+	{
+		is.setLimit(Math.max(0, len + tilesAfter - (is.getend() - is.getptr())));
+		is.check(len);
+	}
+
+	private void subrects(byte[] b, int i, int nSubrects, boolean coloured, int tx, int ty)
+	{
+		for (int j = 0; j < nSubrects; j++)
+		{
+			if (coloured)
+			{
+				fg = color(b, i);
+				i += BYTES_PER_PIXEL;
+			}
+			int b1 = b[i++] & 0xFF;
+			int b2 = b[i++] & 0xFF;
+			fill(tx + (b1 >> 4), ty + (b1 & 0xf), (b2 >> 4) + 1, (b2 & 0xf) + 1, fg);
+		}
+	}
+
+	private static int color(byte[] b, int i)
+	{
+		return 0xFF000000 | (b[i + 2] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i] & 0xFF);
+	}
+
+	private void fill(int x, int y, int w, int h, int color)
+	{
+		if (! filling)
+			return;
+		int offset = y * WIDTH + x;
+		for (int j = 0; j < h; j++, offset += WIDTH)
+			Arrays.fill(pixels, offset, offset + w, color);
+	}
+
+	/**
+	 * 70% solid tiles, mostly keeping the background; 22% text with mono subrects;
+	 * 6% coloured subrects; 2% raw
+	 */
+	static byte[] frame(Random r)
+	{
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		for (int t = 0; t < TILES; t++)
+		{
+			int k = r.nextInt(100);
+			if (k < 70)
+			{
+				if (r.nextInt(4) == 0)
+				{
+					o.write(RfbProto.HextileBackgroundSpecified);
+					pixel(o, 0xee, 0xee, 0xee);
+				}
+				else
+					o.write(0);
+			}
+			else if (k < 92)
+			{
+				o.write(RfbProto.HextileBackgroundSpecified | RfbProto.HextileForegroundSpecified | RfbProto.HextileAnySubrects);
+				pixel(o, 0xff, 0xff, 0xff);
+				pixel(o, 0x20, 0x20, 0x20);
+				int n = 10 + r.nextInt(30);
+				o.write(n);
+				for (int j = 0; j < n; j++)
+				{
+					o.write(r.nextInt(12) << 4 | r.nextInt(14));
+					o.write(r.nextInt(4) << 4 | r.nextInt(2));
+				}
+			}
+			else if (k < 98)
+			{
+				o.write(RfbProto.HextileBackgroundSpecified | RfbProto.HextileAnySubrects | RfbProto.HextileSubrectsColoured);
+				pixel(o, 0xcc, 0xcc, 0xcc);
+				int n = 3 + r.nextInt(12);
+				o.write(n);
+				for (int j = 0; j < n; j++)
+				{
+					pixel(o, r.nextInt(256), r.nextInt(256), r.nextInt(256));
+					o.write(r.nextInt(8) << 4 | r.nextInt(8));
+					o.write(r.nextInt(8) << 4 | r.nextInt(8));
+				}
+			}
+			else
+			{
+				o.write(RfbProto.HextileRaw);
+				for (int p = 0; p < 256; p++)
+					pixel(o, r.nextInt(256), r.nextInt(256), r.nextInt(256));
+			}
+		}
+		return o.toByteArray();
+	}
+
+	private static void pixel(ByteArrayOutputStream o, int r, int g, int b)
+	{
+		o.write(b);
+		o.write(g);
+		o.write(r);
+		o.write(0);
+	}
+}